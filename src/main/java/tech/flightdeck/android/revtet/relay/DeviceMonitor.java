@@ -3,17 +3,26 @@ package tech.flightdeck.android.revtet.relay;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.EndianUtils;
 import tech.flightdeck.android.revtet.relay.entity.Accessory;
-import tech.flightdeck.android.revtet.relay.network.SelectionHandler;
-import tech.flightdeck.android.revtet.relay.network.TCPConnection;
-import tech.flightdeck.android.revtet.relay.network.UDPConnection;
+import tech.flightdeck.android.revtet.relay.entity.Client;
+import tech.flightdeck.android.revtet.relay.entity.SessionStore;
+import tech.flightdeck.android.revtet.relay.loop.EventLoop;
+import tech.flightdeck.android.revtet.relay.loop.EventLoopGroup;
+import tech.flightdeck.android.revtet.relay.loop.ResourceCounters;
+import tech.flightdeck.android.revtet.relay.transport.MemoryTransport;
+import tech.flightdeck.android.revtet.relay.transport.SocketTransportServer;
+import tech.flightdeck.android.revtet.relay.transport.Transport;
 
 import javax.usb.*;
 import javax.usb.event.*;
 import java.io.IOException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Slf4j
 public class DeviceMonitor implements UsbServicesListener {
@@ -30,85 +39,196 @@ public class DeviceMonitor implements UsbServicesListener {
     private static final short AOA_STRING_VER_ID = 3;
     private static final short AOA_STRING_SER_ID = 5;
 
-    private static final int CLEANING_INTERVAL = 60 * 1000;
+    private static final int EVENT_LOOPS = Integer.getInteger("revtet.eventLoops", Runtime.getRuntime().availableProcessors());
+    /**
+     * Whether phones attached over USB are relayed.
+     */
+    private static final boolean USB_ENABLED = Boolean.parseBoolean(System.getProperty("revtet.usb", "true"));
+    /**
+     * Port accepting phones connected over TCP (see {@link SocketTransportServer}), 0 to disable.
+     */
+    private static final int TCP_PORT = Integer.getInteger("revtet.tcp.port", 0);
+    /**
+     * Number of devices brought up (AOA handshake or accessory initialization) in parallel.
+     */
+    private static final int BRING_UP_THREADS = Integer.getInteger("revtet.usb.bringUpThreads", 8);
 
-    private Map<UsbDevice, Accessory> accessoryMap = new ConcurrentHashMap<>();
+    private Map<UsbDevice, Transport> accessoryMap = new ConcurrentHashMap<>();
 
-    private Selector selector;
-    private Thread selectorThread;
+    private final EventLoopGroup eventLoopGroup;
+    // blocking control transfers and interface claims, off the usb4java listener thread
+    private final ExecutorService bringUpExecutor;
+    // devices queued or being brought up, so that a device enumerated and notified is handled once
+    private final Set<UsbDevice> bringingUp = ConcurrentHashMap.newKeySet();
+    // devices detached while being brought up, torn down by the bring-up thread once registered
+    private final Set<UsbDevice> detachedDuringBringUp = ConcurrentHashMap.newKeySet();
+    // clients of the accessories detached recently, resumed if they come back
+    private final SessionStore sessions = new SessionStore();
 
     static {
         Arrays.sort(ANDROID_VIDS);
     }
 
     public DeviceMonitor() throws UsbException, IOException {
-        UsbServices services = UsbHostManager.getUsbServices();
-        services.addUsbServicesListener(this);
-        selector = Selector.open();
-        selectorThread = new Thread(() -> {
-            try {
-                long nextCleaningDeadline = System.currentTimeMillis() + Math.min(UDPConnection.IDLE_TIMEOUT, TCPConnection.IDLE_TIMEOUT);
-                while (true) {
-                    accessoryMap.forEach(((device, accessory) -> {
-                        accessory.processReceive();
-                        accessory.processSend();
-                    }));
-                    selector.selectNow();
-                    Set<SelectionKey> selectedKeys = selector.selectedKeys();
-
-                    long now = System.currentTimeMillis();
-                    if (now >= nextCleaningDeadline) {
-                        cleanUp();
-                        nextCleaningDeadline = now + CLEANING_INTERVAL;
-                    }
-                    for (SelectionKey selectedKey : selectedKeys) {
-                        SelectionHandler selectionHandler = (SelectionHandler)selectedKey.attachment();
-                        selectionHandler.onReady(selectedKey);
-                    }
-                    selectedKeys.clear();
-                }
-            } catch (IOException e) {
-                log.error("Error in selector thread.", e);
+        eventLoopGroup = new EventLoopGroup(EVENT_LOOPS);
+        eventLoopGroup.start();
+        AtomicInteger threadCount = new AtomicInteger();
+        bringUpExecutor = Executors.newFixedThreadPool(BRING_UP_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "USB Bring-up " + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (TCP_PORT > 0) {
+            new SocketTransportServer(new InetSocketAddress(TCP_PORT), eventLoopGroup).start();
+        }
+        if (USB_ENABLED) {
+            UsbServices services = UsbHostManager.getUsbServices();
+            services.addUsbServicesListener(this);
+            // the devices attached before the relay started are not notified
+            int count = enumerate(services.getRootUsbHub());
+            log.info("{} USB devices enumerated at startup.", count);
+        }
+    }
+
+    private int enumerate(UsbHub hub) {
+        int count = 0;
+        for (Object attached : hub.getAttachedUsbDevices()) {
+            UsbDevice device = (UsbDevice) attached;
+            if (device.isUsbHub()) {
+                count += enumerate((UsbHub) device);
+            } else {
+                bringUp(device);
+                ++count;
             }
-        }, "Selector");
-        selectorThread.start();
+        }
+        return count;
     }
 
-    private void cleanUp() {
-        accessoryMap.forEach(((device, accessory) -> {
-            accessory.cleanUp();
-        }));
+    /**
+     * Attach a phone played in memory, e.g. to benchmark the relay.
+     *
+     * @return The transport, its peer being the phone side.
+     */
+    public MemoryTransport attachMemoryTransport() {
+        EventLoop eventLoop = eventLoopGroup.next();
+        MemoryTransport transport = new MemoryTransport(eventLoop);
+        transport.createClient();
+        eventLoop.register(transport);
+        return transport;
     }
 
     public void usbDeviceAttached(UsbServicesEvent usbServicesEvent) {
         UsbDevice device = usbServicesEvent.getUsbDevice();
         log.info("USB device attached. {}", usbServicesEvent.getUsbDevice());
-        try {
-            handleDevice(device);
-        } catch (UsbException e) {
-            log.error("Failed to handle usb device.{}", device, e);
+        bringUp(device);
+    }
+
+    /**
+     * Handle the device on the bring-up executor, so that the devices of a hub are switched to accessory mode and
+     * initialized in parallel.
+     */
+    private void bringUp(UsbDevice device) {
+        if (!isAndroid(device) || accessoryMap.containsKey(device) || !bringingUp.add(device)) {
+            return;
         }
+        long start = System.nanoTime();
+        bringUpExecutor.execute(() -> {
+            try {
+                handleDevice(device);
+                log.info("USB device {} handled in {} ms.", device,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            } catch (UsbException | RuntimeException e) {
+                log.error("Failed to handle usb device.{}", device, e);
+            } finally {
+                bringingUp.remove(device);
+                detachedDuringBringUp.remove(device);
+            }
+        });
     }
 
     public void usbDeviceDetached(UsbServicesEvent usbServicesEvent) {
         UsbDevice device = usbServicesEvent.getUsbDevice();
         log.info("USB device detached. {}", device);
         if (isAccessory(device)) {
-            accessoryMap.remove(device);
+            if (bringingUp.contains(device)) {
+                // recorded before looking the accessory up, so that the bring-up thread sees it once registered
+                detachedDuringBringUp.add(device);
+            }
+            Transport transport = accessoryMap.remove(device);
+            if (transport != null) {
+                detachedDuringBringUp.remove(device);
+                detach(transport);
+            }
         }
     }
 
+    /**
+     * Tear the accessory down: its transfers are cancelled, and its client is either parked or shut down along with
+     * all its connections, so that nothing waits for the idle timeouts.
+     */
+    private void detach(Transport transport) {
+        EventLoop eventLoop = transport.getEventLoop();
+        String serial = transport.getSerial();
+        boolean resumable = serial != null && SessionStore.GRACE_PERIOD > 0;
+        eventLoop.execute(() -> {
+            Client client = resumable ? transport.detachClient() : null;
+            transport.close();
+            // the transport is disposed on the event loop, after this task
+            eventLoop.unregister(transport);
+            if (client != null) {
+                sessions.park(serial, client);
+            }
+            eventLoop.execute(() -> log.info("Accessory {} torn down. {}", serial, ResourceCounters.describe()));
+        });
+    }
+
     private void handleDevice(UsbDevice device) throws UsbException {
         if (isAndroid(device)) {
             if (isAccessory(device)) {
-                Accessory accessory = new Accessory(device, selector);
+                String serial = getSerial(device);
+                Client parked = serial != null ? sessions.take(serial) : null;
+                // a parked client is pinned to its event loop
+                EventLoop eventLoop = parked != null ? parked.getEventLoop() : eventLoopGroup.next();
+                if (parked != null) {
+                    eventLoop.reserve();
+                }
+                Transport accessory;
+                try {
+                    accessory = new Accessory(device, serial, eventLoop);
+                } catch (UsbException | RuntimeException e) {
+                    eventLoop.release();
+                    if (parked != null) {
+                        eventLoop.execute(parked::shutdown);
+                    }
+                    throw e;
+                }
+                if (parked != null) {
+                    eventLoop.execute(() -> accessory.resumeClient(parked));
+                } else {
+                    accessory.createClient();
+                }
                 accessoryMap.put(device, accessory);
+                eventLoop.register(accessory);
+                if (detachedDuringBringUp.remove(device) && accessoryMap.remove(device, accessory)) {
+                    // unplugged meanwhile, the detach event found nothing to tear down
+                    log.info("USB device {} detached during bring-up.", device);
+                    detach(accessory);
+                }
             } else {
                 switchToAccessory(device);
             }
         }
     }
 
+    private static String getSerial(UsbDevice device) {
+        try {
+            return device.getSerialNumberString();
+        } catch (UsbException | UnsupportedEncodingException | RuntimeException e) {
+            log.warn("Cannot read the serial number of {}", device, e);
+            return null;
+        }
+    }
+
     private boolean isAndroid(UsbDevice device) {
         return Arrays.binarySearch(ANDROID_VIDS, device.getUsbDeviceDescriptor().idVendor()) >= 0;
     }
@@ -149,7 +269,12 @@ public class DeviceMonitor implements UsbServicesListener {
                 (byte)(UsbConst.REQUESTTYPE_DIRECTION_OUT | UsbConst.REQUESTTYPE_TYPE_VENDOR),
                 AOA_SEND_IDENT, (short)0, AOA_STRING_SER_ID
         );
-        irp.setData(String.format("%s%s", desc.bcdUSB(), desc.bcdDevice()).getBytes());
+        // the phone reports the same serial number in accessory mode, which identifies its session across resets
+        String serial = getSerial(device);
+        if (serial == null) {
+            serial = String.format("%s%s", desc.bcdUSB(), desc.bcdDevice());
+        }
+        irp.setData(serial.getBytes());
         device.syncSubmit(irp);
 
         log.info("Turning device {} in accessory mode.", device);
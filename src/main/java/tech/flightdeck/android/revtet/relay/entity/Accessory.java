@@ -1,223 +1,603 @@
 package tech.flightdeck.android.revtet.relay.entity;
 
 import lombok.extern.slf4j.Slf4j;
-import tech.flightdeck.android.revtet.relay.listener.CloseListener;
+import org.usb4java.DeviceHandle;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+import org.usb4java.Transfer;
+import org.usb4java.TransferCallback;
+import tech.flightdeck.android.revtet.relay.loop.EventLoop;
+import tech.flightdeck.android.revtet.relay.loop.ResourceCounters;
+import tech.flightdeck.android.revtet.relay.loop.SpscRingQueue;
+import tech.flightdeck.android.revtet.relay.network.Binary;
+import tech.flightdeck.android.revtet.relay.transport.Transport;
+import tech.flightdeck.android.revtet.relay.usb.DirectBufferPool;
+import tech.flightdeck.android.revtet.relay.usb.UsbReactor;
 
 import javax.usb.*;
-import javax.usb.event.*;
-import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.ByteChannel;
-import java.nio.channels.Selector;
-import java.nio.channels.spi.AbstractSelectableChannel;
-import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * USB transport to a phone in Android Open Accessory mode.
+ */
 @Slf4j
-public class Accessory implements ByteChannel {
+public class Accessory extends Transport {
     private static final int BUF_SIZE = 1048576;
+    /**
+     * Number of read transfers kept submitted on the IN pipe, so that the bus is not idle between two transfers.
+     */
+    private static final int READ_AHEAD = Math.max(1, Integer.getInteger("revtet.usb.readAhead", 4));
+    /**
+     * Size of the read transfers, 0 to size them from the negotiated bus speed.
+     */
+    private static final int READ_TRANSFER_SIZE = Integer.getInteger("revtet.usb.readTransferSize", 0);
+    /**
+     * Maximum size of a write transfer, written packets being coalesced up to this size.
+     */
+    private static final int WRITE_TRANSFER_SIZE = Integer.getInteger("revtet.usb.writeTransferSize", 64 * 1024);
+    /**
+     * Maximum number of bytes submitted to the OUT pipe and not completed yet.
+     */
+    private static final long MAX_WRITE_IN_FLIGHT = Long.getLong("revtet.usb.maxWriteInFlight", BUF_SIZE);
+    // one more transfer for the one being filled
+    private static final int WRITE_TRANSFER_COUNT = (int) Math.max(2, MAX_WRITE_IN_FLIGHT / WRITE_TRANSFER_SIZE + 1);
+    /**
+     * Maximum time a partially filled write transfer waits for more data before being submitted, in microseconds.
+     */
+    private static final long WRITE_LINGER = Long.getLong("revtet.usb.writeLinger", 200);
 
-    private static final byte ACCESSORY_EP_IN = (byte)0x81;
-    private static final byte ACCESSORY_EP_OUT = (byte)0x01;
-
+    private final UsbReactor reactor;
     private UsbDevice device;
+    private final String serial;
     private UsbInterface usbInterface;
-    private UsbPipe pipeIn;
-    private UsbPipe pipeOut;
+    private final byte interfaceNumber;
+    // opened in the context of the reactor, and closed by it once disposed and no transfer is in flight
+    private final DeviceHandle handle;
+    private boolean handleClosed;
+    private byte endpointIn;
+    private byte endpointOut;
+
+    private volatile boolean running = true;
 
-    private Client client;
+    // received buffers, handed over from the reactor to the consumer without copy
+    private final SpscRingQueue<ByteBuffer> receivedBuffers;
+    // buffers given back by the consumer to the reactor
+    private final SpscRingQueue<ByteBuffer> freeBuffers;
+    private final TransferCallback readCallback = this::onReadCompleted;
+    // read transfers submitted (with their System.nanoTime() of submission), and those waiting for a free buffer, only
+    // accessed from the reactor
+    private final Map<Transfer, Long> submittedReads = new HashMap<>();
+    private final Deque<Transfer> throttledReads = new ArrayDeque<>(READ_AHEAD);
+    // set by the reactor once disposed, so that the read buffers are released once no read is in flight
+    private boolean disposed;
+    // set by the reactor while reads are throttled, so that release() resumes them
+    private volatile boolean readThrottled;
+    private final AtomicBoolean resumeScheduled = new AtomicBoolean();
+    private long throttledSince;
+    private final AccessoryStatistics statistics;
 
-    private Thread readThread;
-    private Thread writeThread;
-    private volatile boolean running;
+    // transfers available to write(), given back by the reactor once completed
+    private final SpscRingQueue<Transfer> freeWriteTransfers = new SpscRingQueue<>(WRITE_TRANSFER_COUNT);
+    private final TransferCallback writeCallback = this::onWriteCompleted;
+    private final AtomicLong writeInFlight = new AtomicLong();
+    // write transfers submitted and not completed yet, to cancel them on close
+    private final Set<Transfer> submittedWrites = ConcurrentHashMap.newKeySet();
+    // set by the writer when write() could not accept everything, reset by the reactor
+    private volatile boolean writeBlocked;
 
-    private ByteBuffer readBuffer = ByteBuffer.allocate(BUF_SIZE);
-    private ByteBuffer writeBuffer = ByteBuffer.allocate(BUF_SIZE);
-    private BlockingQueue<UsbIrp> writeQueue = new LinkedBlockingQueue<>();
+    // transfer being filled by write(), its buffer position being the length filled, submitted once full or flushed
+    private Transfer pendingTransfer;
+    // System.nanoTime() of the first byte written to pendingTransfer
+    private long pendingSince;
+
+    /**
+     * System.nanoTime() of the submission of a write transfer, attached as its user data.
+     */
+    private static final class WriteSubmission {
+        private long time;
+    }
 
-    public Accessory(UsbDevice device, Selector selector) throws UsbException {
+    /**
+     * @param serial The serial number of the phone, or {@code null} if unknown.
+     */
+    public Accessory(UsbDevice device, String serial, EventLoop eventLoop) throws UsbException {
+        super(eventLoop);
         log.info("Accessory {} initialized.", device);
         this.device = device;
+        this.serial = serial;
+        reactor = UsbReactor.getInstance();
         UsbConfiguration conf = device.getActiveUsbConfiguration();
         usbInterface = conf.getUsbInterface((byte)0);
-        usbInterface.claim(usbInterface -> true);
+        interfaceNumber = usbInterface.getUsbInterfaceDescriptor().bInterfaceNumber();
+        handle = reactor.open(device, serial);
+        // force the claim, like javax.usb does with a policy, where the platform supports it
+        LibUsb.setAutoDetachKernelDriver(handle, true);
+        int result = LibUsb.claimInterface(handle, interfaceNumber);
+        if (result != LibUsb.SUCCESS) {
+            reactor.close(handle);
+            throw new UsbException("Cannot claim the interface of " + device + ": " + LibUsb.errorName(result));
+        }
+        UsbEndpoint in = null;
         for (UsbEndpoint endpoint : (List<UsbEndpoint>)usbInterface.getUsbEndpoints()) {
             switch (endpoint.getDirection()) {
                 case UsbConst.ENDPOINT_DIRECTION_IN:
-                    pipeIn = endpoint.getUsbPipe();
+                    in = endpoint;
+                    endpointIn = endpoint.getUsbEndpointDescriptor().bEndpointAddress();
                     break;
                 case UsbConst.ENDPOINT_DIRECTION_OUT:
-                    pipeOut = endpoint.getUsbPipe();
-                    pipeOut.open();
+                    endpointOut = endpoint.getUsbEndpointDescriptor().bEndpointAddress();
                     break;
             }
         }
 
-        client = new Client(this, selector, new CloseListener<Client>() {
-            @Override
-            public void onClosed(Client object) {
+        for (int i = 0; i < WRITE_TRANSFER_COUNT; ++i) {
+            Transfer transfer = allocTransfer();
+            LibUsb.fillBulkTransfer(transfer, handle, endpointOut, DirectBufferPool.acquire(WRITE_TRANSFER_SIZE),
+                    writeCallback, new WriteSubmission(), 0);
+            freeWriteTransfers.offer(transfer);
+        }
+
+        int transferSize = READ_TRANSFER_SIZE > 0 ? READ_TRANSFER_SIZE : getTransferSize(in);
+        // keep some buffers for the consumer while READ_AHEAD transfers are in flight
+        int bufferCount = Math.max(2 * READ_AHEAD, BUF_SIZE / transferSize);
+        receivedBuffers = new SpscRingQueue<>(bufferCount);
+        freeBuffers = new SpscRingQueue<>(bufferCount);
+        for (int i = 0; i < bufferCount; ++i) {
+            // libusb transfers require direct buffers
+            freeBuffers.offer(DirectBufferPool.acquire(transferSize));
+        }
+        log.info("Reading with {} transfers of {} bytes in flight.", READ_AHEAD, transferSize);
+        statistics = new AccessoryStatistics(serial != null ? serial : device.toString(), receivedBuffers::size,
+                bufferCount, writeInFlight::get, MAX_WRITE_IN_FLIGHT);
+        statistics.register();
 
+        reactor.execute(() -> {
+            for (int i = 0; i < READ_AHEAD; ++i) {
+                submitRead(allocTransfer());
             }
         });
+    }
 
-        readThread = new Thread(() -> {
-            running = true;
-            byte[] buf = new byte[BUF_SIZE];
-            try {
-                pipeIn.open();
-                while (running) {
-                    UsbIrp irp = pipeIn.createUsbIrp();
-                    irp.setData(buf);
-                    pipeIn.syncSubmit(irp);
-                    log.debug("USB received {} bytes.", irp.getActualLength());
-                    synchronized (readBuffer) {
-                        readBuffer.put(irp.getData(), 0, irp.getActualLength());
-                    }
-                }
-            } catch (UsbException e) {
-                try {
-                    log.error("Read error, closing.", e);
-                    close();
-                } catch (IOException ioe) {
-                    log.error("Failed to close usb.", ioe);
-                }
+    /**
+     * Size the read transfers from the max packet size of the endpoint, which depends on the negotiated bus speed:
+     * 64 bytes at full speed, 512 at high speed (USB 2) and 1024 at super speed (USB 3).
+     */
+    private static int getTransferSize(UsbEndpoint endpoint) {
+        int maxPacketSize = endpoint.getUsbEndpointDescriptor().wMaxPacketSize() & 0xffff;
+        if (maxPacketSize >= 1024) {
+            return 256 * 1024;
+        }
+        if (maxPacketSize >= 512) {
+            return 64 * 1024;
+        }
+        return 16 * 1024;
+    }
+
+    /**
+     * Submit a read transfer with a free buffer, or keep it until the consumer releases one.
+     * <p>
+     * While no buffer is free, the transfer is not submitted, so the device is backpressured by the USB link.
+     * <p>
+     * Must only be called from the reactor thread.
+     */
+    private void submitRead(Transfer transfer) {
+        ByteBuffer buffer = pollFreeBuffer();
+        if (buffer == null) {
+            if (throttledReads.isEmpty()) {
+                throttledSince = System.nanoTime();
             }
-        }, String.format("USB Reader %d", client.getId()));
-        readThread.start();
-
-        writeThread = new Thread(() -> {
-            try {
-                while (running) {
-                    UsbIrp irp = writeQueue.take();
-                    pipeOut.syncSubmit(irp);
-                }
-            } catch (Exception e) {
-                log.error("Write error, closing.", e);
-                try {
-                    close();
-                } catch (IOException e1) {
-                    log.error("Failed to close usb.", e1);
-                }
+            throttledReads.add(transfer);
+            return;
+        }
+        if (throttledReads.isEmpty()) {
+            readThrottled = false;
+        }
+        submitRead(transfer, buffer);
+    }
+
+    private void submitRead(Transfer transfer, ByteBuffer buffer) {
+        if (!running) {
+            freeTransfer(transfer);
+            DirectBufferPool.release(buffer);
+            return;
+        }
+        LibUsb.fillBulkTransfer(transfer, handle, endpointIn, buffer, readCallback, null, 0);
+        try {
+            reactor.submit(transfer);
+            submittedReads.put(transfer, System.nanoTime());
+        } catch (LibUsbException e) {
+            log.error("Read error, closing.", e);
+            statistics.recordReadError();
+            freeTransfer(transfer);
+            DirectBufferPool.release(buffer);
+            close();
+        }
+    }
+
+    private static Transfer allocTransfer() {
+        ResourceCounters.USB_TRANSFERS.acquired();
+        return LibUsb.allocTransfer();
+    }
+
+    private static void freeTransfer(Transfer transfer) {
+        LibUsb.freeTransfer(transfer);
+        ResourceCounters.USB_TRANSFERS.released();
+    }
+
+    /**
+     * Free a write transfer along with its buffer, which belongs to it.
+     */
+    private static void freeWriteTransfer(Transfer transfer) {
+        ByteBuffer buffer = transfer.buffer();
+        freeTransfer(transfer);
+        DirectBufferPool.release(buffer);
+    }
+
+    private ByteBuffer pollFreeBuffer() {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null) {
+            readThrottled = true;
+            // a buffer may have been released meanwhile, before seeing readThrottled
+            buffer = freeBuffers.poll();
+        }
+        return buffer;
+    }
+
+    /**
+     * Called from the reactor thread when a read transfer completes, to hand the received buffer over in order.
+     */
+    private void onReadCompleted(Transfer transfer) {
+        long submitted = submittedReads.remove(transfer);
+        int status = transfer.status();
+        ByteBuffer buffer = transfer.buffer();
+        if (status != LibUsb.TRANSFER_COMPLETED) {
+            if (running && status != LibUsb.TRANSFER_CANCELLED) {
+                log.error("Read error ({}), closing.", status);
+                statistics.recordReadError();
+                close();
+            }
+            freeTransfer(transfer);
+            DirectBufferPool.release(buffer);
+        } else {
+            log.debug("USB received {} bytes.", transfer.actualLength());
+            buffer.limit(transfer.actualLength());
+            receivedBuffers.offer(buffer);
+            statistics.recordRead(System.nanoTime() - submitted, transfer.length(), transfer.actualLength());
+            onReceived();
+            submitRead(transfer);
+        }
+        if (disposed && submittedReads.isEmpty()) {
+            releaseReadBuffers();
+            closeHandleIfIdle();
+        }
+    }
+
+    /**
+     * Submit the throttled read transfers again, now that buffers have been released.
+     * <p>
+     * Must only be called from the reactor thread.
+     */
+    private void resumeReads() {
+        resumeScheduled.set(false);
+        while (!throttledReads.isEmpty()) {
+            ByteBuffer buffer = pollFreeBuffer();
+            if (buffer == null) {
+                return;
+            }
+            Transfer transfer = throttledReads.poll();
+            if (throttledReads.isEmpty()) {
+                readThrottled = false;
+                long throttled = (System.nanoTime() - throttledSince) / 1000;
+                statistics.recordReadThrottle(throttled);
+                log.debug("USB reads throttled for {} us", throttled);
             }
+            submitRead(transfer, buffer);
+        }
+    }
+
+    public AccessoryStatistics getStatistics() {
+        return statistics;
+    }
 
-//            byte[] buf;
-//            int len;
-//            while (running) {
-//                buf = null;
-//                synchronized (writeBuffer) {
-//                    writeBuffer.flip();
-//                    if (writeBuffer.hasRemaining()) {
-//                        buf = new byte[writeBuffer.remaining()];
-//                        writeBuffer.get(buf);
-//                    }
-//                    writeBuffer.clear();
-//                    writeBuffer.notify();
-//                }
-//                if (buf != null) {
-//                    try {
-//                        pipeOut.syncSubmit(buf);
-//                    } catch (UsbException e) {
-//                        log.error("Failed to write usb", e);
-//                        try {
-//                            close();
-//                        } catch (IOException e1) {
-//
-//                        }
-//                    }
-//                }
-//            }
-        }, String.format("USB Writer %d", client.getId()));
-        writeThread.start();
-    }
-
-    public void cleanUp() {
-        client.cleanExpiredConnections();
+    @Override
+    public String getSerial() {
+        return serial;
     }
 
     @Override
     public boolean isOpen() {
-        return pipeIn.isOpen() && pipeOut.isOpen();
+        return running;
+    }
+
+    @Override
+    public ByteBuffer take() {
+        return receivedBuffers.poll();
     }
 
     @Override
-    public int read(ByteBuffer dst) throws IOException {
+    public void release(ByteBuffer buffer) {
+        buffer.clear();
+        freeBuffers.offer(buffer);
+        if (readThrottled && resumeScheduled.compareAndSet(false, true)) {
+            reactor.execute(this::resumeReads);
+        }
+    }
+
+    /**
+     * Write data to the client, coalesced into bulk transfers (see {@link #flush()} and {@link #flushLater()}).
+     * <p>
+     * Once {@link #MAX_WRITE_IN_FLIGHT} bytes are in flight, only part of {@code src}, possibly nothing, is accepted;
+     * the writable listener is notified when a transfer completes.
+     *
+     * @return The number of bytes accepted, or -1 once closed, e.g. when the phone is unplugged.
+     */
+    @Override
+    public int write(ByteBuffer src) {
+        if (!running) {
+            freePendingTransfer();
+            return -1;
+        }
         int count = 0;
-        synchronized (readBuffer) {
-            readBuffer.flip();
-            while (readBuffer.hasRemaining()) {
-                dst.put(readBuffer.get());
-                count++;
+        while (src.hasRemaining()) {
+            if (pendingTransfer == null) {
+                pendingTransfer = takeWriteTransfer();
+                if (pendingTransfer == null) {
+                    break;
+                }
+                pendingTransfer.buffer().clear();
+                pendingSince = System.nanoTime();
+            }
+            ByteBuffer data = pendingTransfer.buffer();
+            count += Binary.transfer(src, data);
+            if (!data.hasRemaining()) {
+                submitPendingTransfer();
             }
-            readBuffer.compact();
         }
         return count;
     }
 
+    /**
+     * Submit the partially filled write transfer, if any.
+     * <p>
+     * Must be called from the thread calling {@link #write(ByteBuffer)}.
+     */
     @Override
-    public int write(ByteBuffer src) throws IOException {
-//        int count = 0;
-//        if (src.hasRemaining()) {
-//            try {
-//                synchronized (writeBuffer) {
-//                    if (writeBuffer.hasRemaining()) {
-//                        writeBuffer.wait();
-//                    }
-//                    while (src.hasRemaining()) {
-//                        try {
-//                            writeBuffer.put(src.get());
-//                        } catch (Exception e) {
-//                            log.error("src {} buf {}", src, writeBuffer, e);
-//                        }
-//                        count++;
-//                    }
-//                }
-//            } catch (Exception e) {
-//                log.error("Failed to write to usb buffer, drop.", e);
-//            } finally {
-//                src.clear();
-//            }
-//        }
-//        return count;
-        int len;
-        if (src.hasRemaining()) {
-            len = src.remaining();
-            byte[] buf = new byte[len];
-            src.get(buf);
-            UsbIrp irp = pipeOut.createUsbIrp();
-            irp.setData(buf);
-            irp.setActualLength(len);
-//            writeQueue.add(irp);
-            try {
-                pipeOut.asyncSubmit(irp);
-            } catch (UsbException e) {
-                log.error("Failed to async write to usb.", e);
-            }
+    public void flush() {
+        if (!running) {
+            freePendingTransfer();
+        } else if (pendingTransfer != null) {
+            submitPendingTransfer();
+        }
+    }
+
+    /**
+     * Submit the partially filled write transfer immediately if lingering is disabled, or let the event loop flush it
+     * at its deadline, so that the data written meanwhile is coalesced into the same transfer.
+     * <p>
+     * Must only be called from the event loop thread.
+     */
+    @Override
+    public void flushLater() {
+        if (pendingTransfer == null) {
+            return;
+        }
+        if (WRITE_LINGER == 0) {
+            submitPendingTransfer();
         } else {
-            len = 0;
+            getEventLoop().scheduleFlush(this);
         }
-        return len;
     }
 
-    public void processReceive() {
-        if (readBuffer.hasRemaining()) {
-            client.processReceive();
+    @Override
+    public boolean hasUnflushedData() {
+        return pendingTransfer != null;
+    }
+
+    /**
+     * @return The {@link System#nanoTime()} at which the partially filled write transfer must be submitted.
+     */
+    @Override
+    public long getFlushDeadline() {
+        return pendingSince + TimeUnit.MICROSECONDS.toNanos(WRITE_LINGER);
+    }
+
+    private Transfer takeWriteTransfer() {
+        Transfer transfer = pollWriteTransfer();
+        if (transfer == null) {
+            writeBlocked = true;
+            // a transfer may have completed meanwhile, before seeing writeBlocked
+            transfer = pollWriteTransfer();
+            if (transfer != null) {
+                writeBlocked = false;
+            }
         }
+        return transfer;
     }
 
-    public void processSend() {
-        client.processSend();
+    private Transfer pollWriteTransfer() {
+        if (writeInFlight.get() >= MAX_WRITE_IN_FLIGHT) {
+            return null;
+        }
+        return freeWriteTransfers.poll();
+    }
+
+    private void submitPendingTransfer() {
+        Transfer transfer = pendingTransfer;
+        pendingTransfer = null;
+        int length = transfer.buffer().position();
+        transfer.setLength(length);
+        statistics.recordWriteSubmitted(writeInFlight.addAndGet(length), length);
+        ((WriteSubmission) transfer.userData()).time = System.nanoTime();
+        submittedWrites.add(transfer);
+        try {
+            reactor.submit(transfer);
+        } catch (LibUsbException e) {
+            log.error("Failed to async write to usb.", e);
+            statistics.recordWriteError();
+            submittedWrites.remove(transfer);
+            // the pool is only fed by the reactor
+            reactor.execute(() -> recycle(transfer));
+        }
+    }
+
+    /**
+     * Called from the reactor thread when a write transfer completes.
+     */
+    private void onWriteCompleted(Transfer transfer) {
+        submittedWrites.remove(transfer);
+        long latency = System.nanoTime() - ((WriteSubmission) transfer.userData()).time;
+        int status = transfer.status();
+        if (status != LibUsb.TRANSFER_COMPLETED && status != LibUsb.TRANSFER_CANCELLED) {
+            log.error("Failed to async write to usb ({}).", status);
+            statistics.recordWriteError();
+        }
+        int submitted = transfer.length();
+        int actual = transfer.actualLength();
+        long inFlight = recycle(transfer);
+        statistics.recordWrite(latency, submitted, actual, inFlight);
+    }
+
+    /**
+     * Give a write transfer back to the pool, and notify the writer if it was blocked.
+     * <p>
+     * Must only be called from the reactor thread.
+     *
+     * @return The number of bytes still in flight.
+     */
+    private long recycle(Transfer transfer) {
+        if (!running) {
+            freeWriteTransfer(transfer);
+            closeHandleIfIdle();
+            return writeInFlight.get();
+        }
+        int length = transfer.length();
+        freeWriteTransfers.offer(transfer);
+        long inFlight = writeInFlight.addAndGet(-length);
+        if (writeBlocked) {
+            writeBlocked = false;
+            notifyWritable();
+        }
+        return inFlight;
+    }
+
+    /**
+     * Free the write transfer being filled by the writer once closed. The free ones are freed once disposed, and the
+     * ones in flight on completion.
+     */
+    private void freePendingTransfer() {
+        if (pendingTransfer != null) {
+            freeWriteTransfer(pendingTransfer);
+            pendingTransfer = null;
+        }
     }
 
     @Override
-    public void close() throws IOException {
+    public boolean isWriteBlocked() {
+        return writeBlocked;
+    }
+
+    public long getWriteInFlight() {
+        return writeInFlight.get();
+    }
+
+    @Override
+    public boolean hasReceivedData() {
+        return !receivedBuffers.isEmpty();
+    }
+
+    /**
+     * Close the accessory: the transfers in flight are cancelled, from the reactor.
+     * <p>
+     * The transfers and the buffers held by the writer and the consumer are freed once disposed, and the interface is
+     * released once no transfer is in flight anymore.
+     */
+    @Override
+    public void close() {
+        if (!running) {
+            return;
+        }
         running = false;
-        try {
-            usbInterface.release();
-        } catch (UsbException e) {
-            throw new IOException(e);
+        reactor.execute(this::cancelTransfers);
+    }
+
+    private void cancelTransfers() {
+        // the cancelled transfers are freed on completion
+        for (Transfer transfer : submittedReads.keySet()) {
+            LibUsb.cancelTransfer(transfer);
+        }
+        // a write transfer completing meanwhile is removed from the set on this thread, so it is never freed here
+        for (Transfer transfer : submittedWrites) {
+            LibUsb.cancelTransfer(transfer);
+        }
+        Transfer transfer;
+        while ((transfer = throttledReads.poll()) != null) {
+            freeTransfer(transfer);
+        }
+        log.info("USB link statistics of {}: {}", statistics.getName(), statistics);
+    }
+
+    /**
+     * Release the interface and close the handle, once disposed and no transfer is in flight anymore.
+     * <p>
+     * Must only be called from the reactor thread.
+     */
+    private void closeHandleIfIdle() {
+        if (!disposed || handleClosed || !submittedReads.isEmpty() || !submittedWrites.isEmpty()) {
+            return;
+        }
+        handleClosed = true;
+        int result = LibUsb.releaseInterface(handle, interfaceNumber);
+        if (result != LibUsb.SUCCESS && result != LibUsb.ERROR_NO_DEVICE) {
+            log.error("Failed to release usb interface: {}", LibUsb.errorName(result));
+        }
+        reactor.close(handle);
+    }
+
+    /**
+     * Give the transfers and the buffers back, once closed and unregistered. The read buffers of the cancelled
+     * transfers are released on their completion.
+     * <p>
+     * Must only be called from the event loop thread.
+     */
+    @Override
+    public void dispose() {
+        super.dispose();
+        statistics.unregister();
+        // the client is detached, nothing writes or consumes anymore
+        freePendingTransfer();
+        reactor.execute(() -> {
+            disposed = true;
+            Transfer transfer;
+            while ((transfer = freeWriteTransfers.poll()) != null) {
+                freeWriteTransfer(transfer);
+            }
+            if (submittedReads.isEmpty()) {
+                releaseReadBuffers();
+            }
+            closeHandleIfIdle();
+        });
+    }
+
+    /**
+     * Must only be called from the reactor thread, once disposed and no read is in flight.
+     */
+    private void releaseReadBuffers() {
+        ByteBuffer buffer;
+        while ((buffer = receivedBuffers.poll()) != null) {
+            DirectBufferPool.release(buffer);
+        }
+        while ((buffer = freeBuffers.poll()) != null) {
+            DirectBufferPool.release(buffer);
         }
     }
 }
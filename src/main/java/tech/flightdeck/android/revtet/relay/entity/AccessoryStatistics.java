@@ -0,0 +1,314 @@
+package tech.flightdeck.android.revtet.relay.entity;
+
+import lombok.extern.slf4j.Slf4j;
+import tech.flightdeck.android.revtet.relay.loop.Histogram;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Telemetry of the USB link of an {@link Accessory}, to tell whether a slow phone is limited by USB, by the event loop
+ * or by the network.
+ * <p>
+ * The transfers are recorded by the USB reactor thread, except the submissions of the writes, recorded by the writer.
+ * Everything may be read from any thread, in particular over JMX.
+ */
+@Slf4j
+public class AccessoryStatistics implements AccessoryStatisticsMXBean {
+    private static final String DOMAIN = "tech.flightdeck.revtet";
+
+    private final String name;
+    private final long attachedAt = System.nanoTime();
+    private final IntSupplier receivedBuffers;
+    private final int receivedBuffersCapacity;
+    private final LongSupplier writeInFlight;
+    private final long maxWriteInFlight;
+    private ObjectName objectName;
+
+    private final Histogram inLatency = new Histogram();
+    private final Histogram inTransferSize = new Histogram();
+    private final Histogram inThrottles = new Histogram();
+    private final AtomicLong inShortTransfers = new AtomicLong();
+    private final AtomicLong inErrors = new AtomicLong();
+    private volatile int receivedBuffersHighWater;
+
+    private final Histogram outLatency = new Histogram();
+    private final Histogram outTransferSize = new Histogram();
+    private final AtomicLong outShortTransfers = new AtomicLong();
+    private final AtomicLong outErrors = new AtomicLong();
+    private volatile long writeInFlightHighWater;
+    // System.nanoTime() since which write transfers are in flight, and the total time before, in nanoseconds
+    private volatile long outBusySince;
+    private volatile long outBusyTotal;
+
+    /**
+     * @param name                    The name of the accessory, e.g. its serial number.
+     * @param receivedBuffers         The number of received buffers not consumed yet.
+     * @param receivedBuffersCapacity The number of read buffers.
+     * @param writeInFlight           The number of bytes submitted to the OUT pipe and not completed yet.
+     * @param maxWriteInFlight        The maximum number of bytes in flight.
+     */
+    public AccessoryStatistics(String name, IntSupplier receivedBuffers, int receivedBuffersCapacity,
+            LongSupplier writeInFlight, long maxWriteInFlight) {
+        this.name = name;
+        this.receivedBuffers = receivedBuffers;
+        this.receivedBuffersCapacity = receivedBuffersCapacity;
+        this.writeInFlight = writeInFlight;
+        this.maxWriteInFlight = maxWriteInFlight;
+    }
+
+    /**
+     * Expose the statistics over JMX, until {@link #unregister()}.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=Accessory,name=" + ObjectName.quote(name));
+            server.registerMBean(this, objectName);
+            this.objectName = objectName;
+        } catch (JMException e) {
+            log.warn("Cannot expose the statistics of {} over JMX", name, e);
+        }
+    }
+
+    public void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            log.warn("Cannot unregister the statistics of {} from JMX", name, e);
+        }
+        objectName = null;
+    }
+
+    /**
+     * Must only be called from the reactor thread.
+     *
+     * @param latency   The time since the submission, in nanoseconds.
+     * @param requested The length of the transfer.
+     * @param actual    The length received.
+     */
+    void recordRead(long latency, int requested, int actual) {
+        inLatency.record(TimeUnit.NANOSECONDS.toMicros(latency));
+        inTransferSize.record(actual);
+        if (actual < requested) {
+            inShortTransfers.incrementAndGet();
+        }
+        int received = receivedBuffers.getAsInt();
+        if (received > receivedBuffersHighWater) {
+            receivedBuffersHighWater = received;
+        }
+    }
+
+    /**
+     * Must only be called from the reactor thread.
+     *
+     * @param throttled The time the reads were paused, in microseconds.
+     */
+    void recordReadThrottle(long throttled) {
+        inThrottles.record(throttled);
+    }
+
+    void recordReadError() {
+        inErrors.incrementAndGet();
+    }
+
+    /**
+     * Must only be called from the writer thread, before the transfer is submitted.
+     *
+     * @param inFlight The number of bytes in flight, including the transfer.
+     * @param length   The length of the transfer.
+     */
+    void recordWriteSubmitted(long inFlight, int length) {
+        if (inFlight == length) {
+            // nothing was in flight
+            outBusySince = System.nanoTime();
+        }
+        if (inFlight > writeInFlightHighWater) {
+            writeInFlightHighWater = inFlight;
+        }
+    }
+
+    /**
+     * Must only be called from the reactor thread.
+     *
+     * @param latency   The time since the submission, in nanoseconds.
+     * @param submitted The length of the transfer.
+     * @param actual    The length sent.
+     * @param inFlight  The number of bytes still in flight.
+     */
+    void recordWrite(long latency, int submitted, int actual, long inFlight) {
+        outLatency.record(TimeUnit.NANOSECONDS.toMicros(latency));
+        outTransferSize.record(actual);
+        if (actual < submitted) {
+            outShortTransfers.incrementAndGet();
+        }
+        if (inFlight == 0) {
+            outBusyTotal += System.nanoTime() - outBusySince;
+        }
+    }
+
+    void recordWriteError() {
+        outErrors.incrementAndGet();
+    }
+
+    private long getUptimeNanos() {
+        return Math.max(1, System.nanoTime() - attachedAt);
+    }
+
+    private long perSecond(long total) {
+        return (long) (total * 1e9 / getUptimeNanos());
+    }
+
+    private double percentOfUptime(long nanos) {
+        return 100.0 * nanos / getUptimeNanos();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getUptimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(getUptimeNanos());
+    }
+
+    @Override
+    public long getInTransfers() {
+        return inTransferSize.getCount();
+    }
+
+    @Override
+    public long getInBytes() {
+        return inTransferSize.getSum();
+    }
+
+    @Override
+    public long getInThroughput() {
+        return perSecond(getInBytes());
+    }
+
+    @Override
+    public long getInShortTransfers() {
+        return inShortTransfers.get();
+    }
+
+    @Override
+    public long getInErrors() {
+        return inErrors.get();
+    }
+
+    @Override
+    public String getInLatency() {
+        return inLatency.toString();
+    }
+
+    @Override
+    public String getInTransferSize() {
+        return inTransferSize.toString();
+    }
+
+    @Override
+    public String getInThrottles() {
+        return inThrottles.toString();
+    }
+
+    @Override
+    public double getInThrottledPercent() {
+        return percentOfUptime(TimeUnit.MICROSECONDS.toNanos(inThrottles.getSum()));
+    }
+
+    @Override
+    public int getReceivedBuffers() {
+        return receivedBuffers.getAsInt();
+    }
+
+    @Override
+    public int getReceivedBuffersHighWater() {
+        return receivedBuffersHighWater;
+    }
+
+    @Override
+    public int getReceivedBuffersCapacity() {
+        return receivedBuffersCapacity;
+    }
+
+    @Override
+    public long getOutTransfers() {
+        return outTransferSize.getCount();
+    }
+
+    @Override
+    public long getOutBytes() {
+        return outTransferSize.getSum();
+    }
+
+    @Override
+    public long getOutThroughput() {
+        return perSecond(getOutBytes());
+    }
+
+    @Override
+    public long getOutShortTransfers() {
+        return outShortTransfers.get();
+    }
+
+    @Override
+    public long getOutErrors() {
+        return outErrors.get();
+    }
+
+    @Override
+    public String getOutLatency() {
+        return outLatency.toString();
+    }
+
+    @Override
+    public String getOutTransferSize() {
+        return outTransferSize.toString();
+    }
+
+    @Override
+    public double getOutUtilizationPercent() {
+        long busy = outBusyTotal;
+        if (writeInFlight.getAsLong() > 0) {
+            busy += System.nanoTime() - outBusySince;
+        }
+        return percentOfUptime(busy);
+    }
+
+    @Override
+    public long getWriteInFlight() {
+        return writeInFlight.getAsLong();
+    }
+
+    @Override
+    public long getWriteInFlightHighWater() {
+        return writeInFlightHighWater;
+    }
+
+    @Override
+    public long getMaxWriteInFlight() {
+        return maxWriteInFlight;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("in: %d B/s, short %d/%d, errors %d, latency us [%s], size [%s], throttled %.1f%% [%s], "
+                        + "received buffers high water %d/%d; out: %d B/s, short %d/%d, errors %d, latency us [%s], "
+                        + "size [%s], utilization %.1f%%, in flight high water %d/%d",
+                getInThroughput(), getInShortTransfers(), getInTransfers(), getInErrors(), inLatency, inTransferSize,
+                getInThrottledPercent(), inThrottles, receivedBuffersHighWater, receivedBuffersCapacity,
+                getOutThroughput(), getOutShortTransfers(), getOutTransfers(), getOutErrors(), outLatency,
+                outTransferSize, getOutUtilizationPercent(), writeInFlightHighWater, maxWriteInFlight);
+    }
+}
@@ -0,0 +1,87 @@
+package tech.flightdeck.android.revtet.relay.entity;
+
+/**
+ * Telemetry of the USB link of an accessory, exposed over JMX as
+ * {@code tech.flightdeck.revtet:type=Accessory,name=<serial>}.
+ * <p>
+ * "In" is the phone to relay direction, "out" the relay to phone one. Latencies are in microseconds, sizes in bytes.
+ */
+public interface AccessoryStatisticsMXBean {
+    String getName();
+
+    long getUptimeMillis();
+
+    long getInTransfers();
+
+    long getInBytes();
+
+    /**
+     * @return The average number of bytes received per second since attached.
+     */
+    long getInThroughput();
+
+    /**
+     * @return The number of read transfers completed with less data than requested.
+     */
+    long getInShortTransfers();
+
+    long getInErrors();
+
+    /**
+     * @return The time between submitting a read transfer and its completion, including the time the phone has
+     * nothing to send.
+     */
+    String getInLatency();
+
+    String getInTransferSize();
+
+    /**
+     * @return The time the reads have been paused because the event loop did not consume the received data.
+     */
+    String getInThrottles();
+
+    /**
+     * @return The percentage of the time the reads have been paused by the event loop.
+     */
+    double getInThrottledPercent();
+
+    int getReceivedBuffers();
+
+    int getReceivedBuffersHighWater();
+
+    int getReceivedBuffersCapacity();
+
+    long getOutTransfers();
+
+    long getOutBytes();
+
+    /**
+     * @return The average number of bytes sent per second since attached.
+     */
+    long getOutThroughput();
+
+    /**
+     * @return The number of write transfers completed with less data than submitted.
+     */
+    long getOutShortTransfers();
+
+    long getOutErrors();
+
+    /**
+     * @return The time between submitting a write transfer and its completion.
+     */
+    String getOutLatency();
+
+    String getOutTransferSize();
+
+    /**
+     * @return The percentage of the time at least one write transfer was in flight.
+     */
+    double getOutUtilizationPercent();
+
+    long getWriteInFlight();
+
+    long getWriteInFlightHighWater();
+
+    long getMaxWriteInFlight();
+}
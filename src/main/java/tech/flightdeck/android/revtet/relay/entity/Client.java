@@ -2,38 +2,158 @@ package tech.flightdeck.android.revtet.relay.entity;
 
 import lombok.extern.slf4j.Slf4j;
 import tech.flightdeck.android.revtet.relay.listener.CloseListener;
+import tech.flightdeck.android.revtet.relay.loop.EventLoop;
+import tech.flightdeck.android.revtet.relay.loop.MpscLinkedQueue;
+import tech.flightdeck.android.revtet.relay.loop.ResourceCounters;
 import tech.flightdeck.android.revtet.relay.network.*;
+import tech.flightdeck.android.revtet.relay.transport.Transport;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.Selector;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Slf4j
 public class Client {
-    private static int nextId = 0;
+    /**
+     * Bytes granted to each direction every time the client is serviced by its event loop (deficit round robin).
+     */
+    private static final int QUANTUM = Integer.getInteger("revtet.clientQuantum", 32 * 1024);
+    /**
+     * Whether packets are parsed and written to the client by dedicated threads (see {@link PacketPipeline}).
+     */
+    private static final boolean PIPELINED = Boolean.getBoolean("revtet.pipeline");
+    /**
+     * With active queue management, maximum number of bulk bytes queued in the client buffer, so that the packets wait
+     * in the per-flow queues, where CoDel sees their sojourn time, rather than in a single FIFO.
+     */
+    private static final int AQM_CLIENT_QUEUE = Integer.getInteger("revtet.aqm.clientQueue", 64 * 1024);
+
+    // clients are created by the bring-up threads and the TCP transport server concurrently
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
 
     private final int id;
-    private final Accessory clientChannel;
+    private final EventLoop eventLoop;
+    // replaced when the session is resumed on a new transport
+    private volatile Transport clientChannel;
     private final CloseListener<Client> closeListener;
 
-    private final IPv4PacketBuffer clientToNetwork = new IPv4PacketBuffer();
+    private IPv4PacketBuffer clientToNetwork;
+    // kept while the session is parked, and replayed once resumed
     private final StreamBuffer networkToClient = new StreamBuffer(16 * IPv4Packet.MAX_PACKET_LENGTH);
+    // priority packets, written before the ones of networkToClient
+    private final StreamBuffer priorityToClient = new StreamBuffer(2 * IPv4Packet.MAX_PACKET_LENGTH);
+    // buffer whose head packet is partially written, null at a packet boundary
+    private StreamBuffer writingBuffer;
+    // bytes of the packet at the head of writingBuffer not written yet
+    private int headPacketRemaining;
     private final Router router;
+    private PacketPipeline pipeline;
 
-    private final List<PacketSource> pendingPacketSources = new ArrayList<>();
+    // connections waiting for space in the client buffer, the priority ones being served first
+    private final FlowScheduler priorityFlows = new FlowScheduler();
+    private final FlowScheduler bulkFlows = new FlowScheduler();
+    // packets built by other threads, drained by the event loop
+    private final MpscLinkedQueue<IPv4Packet> injectedPackets = new MpscLinkedQueue<>();
 
     private ByteBuffer pendingIdBuffer;
 
-    public Client(Accessory clientChannel, Selector selector, CloseListener<Client> closeListener) {
-        id = nextId++;
-        this.clientChannel = clientChannel;
-        router = new Router(this, selector);
+    private int receiveDeficit;
+    private int sendDeficit;
+
+    private boolean shutDown;
+
+    public Client(Transport clientChannel, EventLoop eventLoop, CloseListener<Client> closeListener) {
+        id = NEXT_ID.getAndIncrement();
+        this.eventLoop = eventLoop;
+        router = new Router(this, eventLoop);
         pendingIdBuffer = createIntBuffer(id);
 
         this.closeListener = closeListener;
+
+        bind(clientChannel);
+        ResourceCounters.CLIENTS.acquired();
+    }
+
+    private void bind(Transport clientChannel) {
+        this.clientChannel = clientChannel;
+        clientToNetwork = new IPv4PacketBuffer(clientChannel);
+        if (PIPELINED) {
+            pipeline = new PacketPipeline(id, clientChannel, clientChannel,
+                    clientChannel::requestProcessing, clientChannel::requestProcessing, this::close);
+            pipeline.start();
+            clientChannel.setWritableListener(pipeline::signalWritable);
+        } else {
+            pipeline = null;
+            clientChannel.setWritableListener(clientChannel::requestProcessing);
+        }
+    }
+
+    /**
+     * Detach the client from its transport, which is going away, keeping its connections and the data not written to
+     * the client yet.
+     * <p>
+     * Must only be called from the event loop thread.
+     */
+    public void park() {
+        // the received buffer it holds belongs to the transport, which is disposed afterwards
+        clientToNetwork.release();
+        if (pipeline != null) {
+            // the packets parsed or queued for egress by the pipeline are lost
+            pipeline.stop();
+            pipeline.awaitTermination();
+        }
+    }
+
+    /**
+     * Attach a parked client to a new transport, and replay the data not written to the client yet.
+     * <p>
+     * Must only be called from the event loop thread.
+     *
+     * @param clientChannel The new transport.
+     */
+    public void resume(Transport clientChannel) {
+        bind(clientChannel);
+        // the new transport starts a new stream, the end of a packet partially written to the old one is garbage
+        if (writingBuffer != null) {
+            writingBuffer.skip(headPacketRemaining);
+            writingBuffer = null;
+            headPacketRemaining = 0;
+        }
+        // the data in flight on the old transport is lost, and the relay does not retransmit it
+        int reset = router.resetUnacknowledged();
+        if (reset > 0) {
+            log.info("Client {} resumed, {} connections with unacknowledged data reset.", id, reset);
+        }
+        clientChannel.requestProcessing();
+    }
+
+    /**
+     * Release everything held by a client detached from its transport: its connections are closed (with their
+     * sockets), and the packets not written to the phone are dropped.
+     * <p>
+     * Must only be called from the event loop thread.
+     *
+     * @return The number of connections closed.
+     */
+    public int shutdown() {
+        if (shutDown) {
+            return 0;
+        }
+        shutDown = true;
+        park();
+        int count = router.closeAll();
+        priorityFlows.clear();
+        bulkFlows.clear();
+        while (injectedPackets.poll() != null) {
+            // dropped
+        }
+        ResourceCounters.CLIENTS.released();
+        log.info("Client {} shut down, {} connections closed.", id, count);
+        return count;
+    }
+
+    public EventLoop getEventLoop() {
+        return eventLoop;
     }
 
     private static ByteBuffer createIntBuffer(int value) {
@@ -48,58 +168,127 @@ public class Client {
         return id;
     }
 
+    /**
+     * Notify that data has been received from the client channel.
+     * <p>
+     * May be called from any thread.
+     */
+    public void onReceived() {
+        if (pipeline != null) {
+            pipeline.signalReceived();
+        } else {
+            clientChannel.requestProcessing();
+        }
+    }
+
     public void processReceive() {
-        if (!read()) {
-            close();
+        if (pipeline != null) {
+            routeParsed();
             return;
         }
         pushToNetwork();
     }
 
     public void processSend() {
-        if (!write()) {
+        if (pipeline == null && !write()) {
             close();
             return;
         }
+        processInjected();
         processPending();
     }
 
-    private void processPending() {
-        Iterator<PacketSource> iterator = pendingPacketSources.iterator();
-        while (iterator.hasNext()) {
-            PacketSource packetSource = iterator.next();
-            IPv4Packet packet = packetSource.get();
-            if (sendToClient(packet)) {
-                packetSource.next();
-                log.debug("Pending packet sent to client ({})", packet.getRawLength());
-                iterator.remove();
-            } else {
-                log.warn("Pending packet not sent to client ({}), client buffer full again", packet.getRawLength());
+    private void processInjected() {
+        IPv4Packet packet;
+        while ((packet = injectedPackets.peek()) != null) {
+            if (!sendToClient(packet, TrafficClassifier.classify(packet, null, eventLoop.now()), null)) {
+                // client buffer full, retry on the next round
                 return;
             }
+            injectedPackets.poll();
+        }
+    }
+
+    private void processPending() {
+        if (priorityFlows.isEmpty() && bulkFlows.isEmpty()) {
+            sendDeficit = 0;
+            return;
+        }
+        sendDeficit += QUANTUM;
+        // out of budget or client buffer full, the remaining flows are resumed on the next round
+        sendDeficit -= priorityFlows.send((source, packet) ->
+                sendToClient(packet, TrafficClass.PRIORITY, source.getQueuedFlow()), sendDeficit);
+        if (priorityFlows.isEmpty()) {
+            sendDeficit -= bulkFlows.send((source, packet) ->
+                    sendToClient(packet, TrafficClass.BULK, source.getQueuedFlow()), sendDeficit);
+        }
+        if (priorityFlows.isEmpty() && bulkFlows.isEmpty()) {
+            // nothing left, do not accumulate credit while idle
+            sendDeficit = 0;
         }
     }
 
     private void pushToNetwork() {
-        IPv4Packet packet;
-        while((packet = clientToNetwork.asIPv4Packet()) != null) {
-            router.sendToNetwork(packet);
+        receiveDeficit += QUANTUM;
+        int length;
+        while ((length = clientToNetwork.nextPacketLength()) > 0) {
+            if (length > receiveDeficit) {
+                // out of budget, the remaining packets are kept for the next round
+                return;
+            }
+            receiveDeficit -= length;
+            router.sendToNetwork(clientToNetwork.asIPv4Packet());
             clientToNetwork.next();
         }
+        // nothing left, do not accumulate credit while idle
+        receiveDeficit = 0;
     }
 
-    private boolean read() {
-        try {
-            return clientToNetwork.readFrom(clientChannel) != -1;
-        } catch (IOException e) {
-            log.error("Cannot read", e);
-            return false;
+    private void routeParsed() {
+        receiveDeficit += QUANTUM;
+        int length;
+        while ((length = pipeline.nextPacketLength()) > 0) {
+            if (length > receiveDeficit) {
+                // out of budget, the remaining packets are kept for the next round
+                return;
+            }
+            receiveDeficit -= length;
+            router.sendToNetwork(pipeline.nextPacket());
         }
+        // nothing left, do not accumulate credit while idle
+        receiveDeficit = 0;
     }
 
     private boolean write() {
         try {
-            return networkToClient.writeTo(clientChannel) != -1;
+            // written packet by packet, so that priority packets are interleaved and that the stream can be resumed at a
+            // packet boundary on a new transport
+            while (true) {
+                StreamBuffer buffer = writingBuffer;
+                if (buffer == null) {
+                    buffer = !priorityToClient.isEmpty() ? priorityToClient : networkToClient;
+                    if (buffer.isEmpty()) {
+                        break;
+                    }
+                    // IPv4 total length
+                    headPacketRemaining = buffer.peekUnsignedShort(2);
+                    writingBuffer = buffer;
+                }
+                int w = buffer.writeTo(clientChannel, headPacketRemaining);
+                if (w == -1) {
+                    return false;
+                }
+                if (w == 0) {
+                    // the transport is full
+                    break;
+                }
+                headPacketRemaining -= w;
+                if (headPacketRemaining == 0) {
+                    writingBuffer = null;
+                }
+            }
+            clientChannel.flushLater();
+            return true;
         } catch (IOException e) {
             log.error("Cannot write", e);
             return false;
@@ -107,40 +296,124 @@ public class Client {
     }
 
     private void close() {
-        try {
-            clientChannel.close();
-        } catch (IOException e) {
-            log.error("Cannot close client connection", e);
+        if (pipeline != null) {
+            pipeline.stop();
         }
+        clientChannel.close();
     }
 
-    public boolean sendToClient(IPv4Packet packet) {
-        synchronized (networkToClient) {
-            if (networkToClient.remaining() < packet.getRawLength()) {
+    /**
+     * Send a packet to the client.
+     * <p>
+     * Must only be called from the event loop thread, other threads must use {@link #inject(IPv4Packet)}.
+     *
+     * @param packet       The packet, checksums not computed yet.
+     * @param trafficClass The class of the packet, {@link TrafficClass#PRIORITY} packets skipping ahead of the
+     *                     {@link TrafficClass#BULK} packets not written yet.
+     * @param flow         The flow of the packet, whose packets still queued it must not overtake, or {@code null}.
+     * @return {@code true} if the packet has been queued, {@code false} if the client buffer is full.
+     */
+    public boolean sendToClient(IPv4Packet packet, TrafficClass trafficClass, QueuedFlow flow) {
+        if (pipeline != null) {
+            // checksums are computed by the egress stage
+            if (!pipeline.offerToClient(packet, trafficClass)) {
                 log.warn("Client buffer full");
                 return false;
             }
-            networkToClient.readFrom(packet.getRaw());
+            return true;
+        }
+        StreamBuffer buffer = trafficClass == TrafficClass.PRIORITY ? priorityToClient : networkToClient;
+        StreamBuffer pending = flow != null ? flow.getPendingBuffer() : null;
+        if (pending != null) {
+            // the flow changed class while some of its packets are not written yet, it must not overtake them
+            buffer = pending;
+        }
+        // never overflowing into the other buffer, which would reorder the flow: the source retries once written
+        if (buffer.remaining() < packet.getRawLength()) {
+            log.warn("Client buffer full");
+            return false;
         }
-        //interests
+        if (CoDelQueue.ENABLED && buffer == networkToClient && !buffer.isEmpty() && packet.getPayloadLength() > 0
+                && buffer.size() + packet.getRawLength() > AQM_CLIENT_QUEUE) {
+            // the flows wait in their own queues, but not the packets without payload: they take little space, and a
+            // FIN, RST or SYN is not retransmitted if dropped
+            return false;
+        }
+        packet.computeChecksums();
+        buffer.readFrom(packet.getRaw());
+        if (flow != null) {
+            flow.queued(buffer);
+        }
+        clientChannel.requestProcessing();
         return true;
     }
 
-    public void consume(PacketSource source) {
-        IPv4Packet packet = source.get();
-        if (sendToClient(packet)) {
-            source.next();
-            return;
+    /**
+     * Hand a packet over to the event loop, which will send it to the client.
+     * <p>
+     * May be called from any thread. The packet must not share its buffer with anything else.
+     *
+     * @param packet The packet, checksums not computed yet.
+     */
+    public void inject(IPv4Packet packet) {
+        injectedPackets.offer(packet);
+        clientChannel.requestProcessing();
+    }
+
+    /**
+     * Send the packets of a connection to the client, or schedule it until there is space.
+     * <p>
+     * While other connections of the same class are waiting, the source waits behind them, so that a bulk flow refilling
+     * the client buffer as soon as there is space does not starve the others.
+     *
+     * @param source       The source, not already scheduled. It stays scheduled until its {@link PacketSource#get()}
+     *                     returns {@code null}.
+     * @param trafficClass The class of its packets.
+     */
+    public void consume(PacketSource source, TrafficClass trafficClass) {
+        FlowScheduler flows = trafficClass == TrafficClass.PRIORITY ? priorityFlows : bulkFlows;
+        if (flows.isEmpty()) {
+            IPv4Packet packet;
+            while ((packet = source.get()) != null && sendToClient(packet, trafficClass, source.getQueuedFlow())) {
+                source.next();
+            }
+            if (packet == null) {
+                return;
+            }
         }
-        assert !pendingPacketSources.contains(source);
-        pendingPacketSources.add(source);
+        flows.add(source);
+    }
+
+    public boolean hasPendingWork() {
+        if (pipeline == null && clientChannel.hasReceivedData()) {
+            return true;
+        }
+        return hasPendingReceive() || hasPendingSend();
+    }
+
+    private boolean hasPendingReceive() {
+        if (pipeline != null) {
+            return pipeline.hasParsedPackets();
+        }
+        return clientToNetwork.nextPacketLength() > 0;
+    }
+
+    private boolean hasPendingSend() {
+        if (pipeline != null) {
+            // when starved, the egress stage reschedules the client once it has space again
+            return (!priorityFlows.isEmpty() || !bulkFlows.isEmpty() || !injectedPackets.isEmpty())
+                    && !pipeline.isEgressStarved();
+        }
+        if (clientChannel.isWriteBlocked()) {
+            // the transport reschedules the client once writable
+            return false;
+        }
+        return !priorityToClient.isEmpty() || !networkToClient.isEmpty() || !priorityFlows.isEmpty()
+                || !bulkFlows.isEmpty() || !injectedPackets.isEmpty();
     }
 
     public Router getRouter() {
         return router;
     }
 
-    public void cleanExpiredConnections() {
-        router.cleanExpiredConnections();
-    }
 }
@@ -0,0 +1,92 @@
+package tech.flightdeck.android.revtet.relay.entity;
+
+import lombok.extern.slf4j.Slf4j;
+import tech.flightdeck.android.revtet.relay.loop.EventLoop;
+import tech.flightdeck.android.revtet.relay.loop.Timeout;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Clients parked while their phone is away, e.g. during a brief USB reset, keyed by the serial number of the phone.
+ * <p>
+ * A parked client keeps its connections and the data not written to the phone yet. It is resumed if the phone comes
+ * back within the grace period, otherwise its connections are closed.
+ */
+@Slf4j
+public class SessionStore {
+    /**
+     * Time a client is kept parked, in milliseconds, 0 to close the connections as soon as the phone is detached.
+     */
+    public static final long GRACE_PERIOD = Long.getLong("revtet.session.gracePeriod", 30_000);
+
+    private final long gracePeriod;
+    private final Map<String, Session> parked = new ConcurrentHashMap<>();
+
+    private static final class Session {
+        private final Client client;
+        private Timeout expiration;
+
+        private Session(Client client) {
+            this.client = client;
+        }
+    }
+
+    public SessionStore() {
+        this(GRACE_PERIOD);
+    }
+
+    /**
+     * @param gracePeriod The time a client is kept parked, in milliseconds.
+     */
+    SessionStore(long gracePeriod) {
+        this.gracePeriod = gracePeriod;
+    }
+
+    /**
+     * Park a client detached from its transport, until resumed or expired.
+     * <p>
+     * Must only be called from the event loop thread of the client.
+     *
+     * @param serial The serial number of the phone.
+     * @param client The client, already detached.
+     */
+    public void park(String serial, Client client) {
+        EventLoop eventLoop = client.getEventLoop();
+        Session session = new Session(client);
+        session.expiration = eventLoop.getTimerWheel().newTimeout(() -> {
+            if (parked.remove(serial, session)) {
+                int count = client.shutdown();
+                log.info("Session of {} expired, {} connections closed.", serial, count);
+            }
+        });
+        eventLoop.getTimerWheel().schedule(session.expiration, eventLoop.now() + gracePeriod);
+        Session previous = parked.put(serial, session);
+        if (previous != null) {
+            // the phone was detached twice without resuming, the oldest session cannot be resumed anymore
+            previous.client.getEventLoop().execute(() -> {
+                previous.expiration.cancel();
+                previous.client.shutdown();
+            });
+        }
+        log.info("Session of {} parked for {} ms.", serial, gracePeriod);
+    }
+
+    /**
+     * Take the client parked for a phone, if any, to resume it on a new transport.
+     * <p>
+     * May be called from any thread. The client must then be resumed on its own event loop.
+     *
+     * @param serial The serial number of the phone.
+     * @return The client, or {@code null} if none.
+     */
+    public Client take(String serial) {
+        Session session = parked.remove(serial);
+        if (session == null) {
+            return null;
+        }
+        session.client.getEventLoop().execute(session.expiration::cancel);
+        log.info("Resuming session of {}.", serial);
+        return session.client;
+    }
+}
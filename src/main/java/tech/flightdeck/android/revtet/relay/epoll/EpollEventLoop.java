@@ -0,0 +1,168 @@
+package tech.flightdeck.android.revtet.relay.epoll;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.AdaptiveRecvByteBufAllocator;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.util.concurrent.ScheduledFuture;
+import lombok.extern.slf4j.Slf4j;
+import tech.flightdeck.android.revtet.relay.loop.EventLoop;
+import tech.flightdeck.android.revtet.relay.network.NetworkSocket;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Event loop running on a Netty native epoll event loop (Linux only).
+ * <p>
+ * Sockets are edge-triggered, read into pooled direct buffers, and their writes are flushed once per loop iteration
+ * so that they are batched into a single syscall. The transports and the timer wheel are processed by tasks
+ * submitted to the Netty event loop.
+ */
+@Slf4j
+public class EpollEventLoop extends EventLoop {
+    private static final int MAX_MESSAGES_PER_READ = 4;
+
+    private final EpollEventLoopGroup group;
+    private final io.netty.channel.EventLoop nettyEventLoop;
+    private final Bootstrap streamBootstrap;
+    private final Bootstrap datagramBootstrap;
+
+    private final AtomicBoolean iterationPending = new AtomicBoolean();
+    private final Runnable iteration = this::iterate;
+    private ScheduledFuture<?> timer;
+    private long timerDeadline;
+    private ScheduledFuture<?> flushTimer;
+    private final Runnable flushTask = () -> {
+        beginIteration();
+        flushLingeringWrites();
+        scheduleFlushTimer();
+        endIteration(0, 0);
+    };
+
+    public EpollEventLoop(String name) {
+        group = new EpollEventLoopGroup(1, (ThreadFactory) runnable -> new Thread(runnable, name));
+        nettyEventLoop = group.next();
+        streamBootstrap = new Bootstrap()
+                .group(nettyEventLoop)
+                .channel(EpollSocketChannel.class)
+                .option(ChannelOption.AUTO_READ, false)
+                // keep writing to the server after its FIN, like a SocketChannel
+                .option(ChannelOption.ALLOW_HALF_CLOSURE, true)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .option(ChannelOption.RCVBUF_ALLOCATOR, new AdaptiveRecvByteBufAllocator().maxMessagesPerRead(MAX_MESSAGES_PER_READ))
+                .option(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED);
+        datagramBootstrap = new Bootstrap()
+                .group(nettyEventLoop)
+                .channel(EpollDatagramChannel.class)
+                .option(ChannelOption.AUTO_READ, false)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .option(ChannelOption.RCVBUF_ALLOCATOR, new AdaptiveRecvByteBufAllocator().maxMessagesPerRead(MAX_MESSAGES_PER_READ))
+                .option(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED);
+    }
+
+    @Override
+    public void start() {
+        // the Netty thread is started by its first task
+        nettyEventLoop.execute(iteration);
+    }
+
+    @Override
+    public boolean inEventLoop() {
+        return nettyEventLoop.inEventLoop();
+    }
+
+    @Override
+    public NetworkSocket openStream(InetSocketAddress address, NetworkSocket.ReadyHandler readyHandler) throws IOException {
+        EpollSocket socket = new EpollSocket(this, address, readyHandler);
+        ChannelFuture future = streamBootstrap.clone().handler(socket).connect(address);
+        socket.attach(future);
+        return socket;
+    }
+
+    @Override
+    public NetworkSocket openDatagram(InetSocketAddress address, NetworkSocket.ReadyHandler readyHandler) throws IOException {
+        EpollSocket socket = new EpollSocket(this, address, readyHandler);
+        ChannelFuture future = datagramBootstrap.clone().handler(socket).connect(address);
+        socket.attach(future);
+        return socket;
+    }
+
+    @Override
+    protected void onScheduled(boolean fromEventLoop) {
+        if (iterationPending.compareAndSet(false, true)) {
+            nettyEventLoop.execute(iteration);
+        }
+    }
+
+    /**
+     * Socket events are dispatched by the Netty event loop outside of the iterations of this loop, so each dispatch is
+     * measured as an iteration of its own.
+     */
+    void beginSocketEvent() {
+        beginIteration();
+    }
+
+    void endSocketEvent() {
+        endIteration(1, 0);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        nettyEventLoop.execute(() -> {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                log.error("Error in event loop task", e);
+            }
+        });
+    }
+
+    private void iterate() {
+        iterationPending.set(false);
+        beginIteration();
+        int transports = processReadyTransports();
+        flushLingeringWrites();
+        scheduleFlushTimer();
+        advanceTimers();
+        endIteration(0, transports);
+    }
+
+    private void scheduleFlushTimer() {
+        long delay = getFlushDelay();
+        // the linger duration is constant, so a pending flush timer never fires too late
+        if (delay != -1 && (flushTimer == null || flushTimer.isDone())) {
+            flushTimer = nettyEventLoop.schedule(flushTask, delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void advanceTimers() {
+        getTimerWheel().advance(now());
+        long deadline = getTimerWheel().nextDeadline();
+        if (deadline == -1) {
+            return;
+        }
+        if (timer != null && !timer.isDone()) {
+            if (timerDeadline <= deadline) {
+                // the pending timer will fire early enough
+                return;
+            }
+            timer.cancel(false);
+        }
+        timerDeadline = deadline;
+        timer = nettyEventLoop.schedule(() -> {
+            beginIteration();
+            advanceTimers();
+            endIteration(0, 0);
+        }, Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+}
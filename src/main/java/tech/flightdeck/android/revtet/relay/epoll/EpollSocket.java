@@ -0,0 +1,259 @@
+package tech.flightdeck.android.revtet.relay.epoll;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.DatagramPacket;
+import lombok.extern.slf4j.Slf4j;
+import tech.flightdeck.android.revtet.relay.network.NetworkSocket;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * {@link NetworkSocket} backed by a Netty epoll channel.
+ * <p>
+ * Reads are not automatic: a read is requested only while {@link SelectionKey#OP_READ} is in the interests and the
+ * received buffers have been consumed, so that the connection flow control works as with a selector. Writes are
+ * accepted while the channel is writable, and flushed once per event loop iteration.
+ */
+@Slf4j
+class EpollSocket extends ChannelInboundHandlerAdapter implements NetworkSocket {
+    private final EpollEventLoop eventLoop;
+    private final InetSocketAddress address;
+    private final ReadyHandler readyHandler;
+
+    private Channel channel;
+    private boolean datagram;
+
+    private final Queue<ByteBuf> received = new ArrayDeque<>();
+    private int interests;
+    private boolean connectDone;
+    private boolean connected;
+    private Throwable error;
+    private boolean eof;
+    private boolean reading;
+    private boolean closed;
+    private boolean dispatchPending;
+    private boolean flushPending;
+
+    private final Runnable dispatchTask = this::dispatch;
+    private final Runnable flushTask = () -> {
+        flushPending = false;
+        channel.flush();
+    };
+
+    EpollSocket(EpollEventLoop eventLoop, InetSocketAddress address, ReadyHandler readyHandler) {
+        this.eventLoop = eventLoop;
+        this.address = address;
+        this.readyHandler = readyHandler;
+    }
+
+    void attach(ChannelFuture connectFuture) {
+        channel = connectFuture.channel();
+        datagram = channel instanceof DatagramChannel;
+        connectFuture.addListener(future -> {
+            connectDone = true;
+            if (future.isSuccess()) {
+                connected = true;
+            } else {
+                error = future.cause();
+            }
+            // never notify synchronously, the connection may still be initializing
+            scheduleDispatch();
+        });
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        ByteBuf buf = msg instanceof DatagramPacket ? ((DatagramPacket) msg).content() : (ByteBuf) msg;
+        if (closed) {
+            buf.release();
+            return;
+        }
+        received.add(buf);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        reading = false;
+        dispatch();
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+        if (evt instanceof ChannelInputShutdownEvent) {
+            eof = true;
+            dispatch();
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        eof = true;
+        dispatch();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        dispatch();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        log.error("Socket error", cause);
+        error = cause;
+        eof = true;
+        dispatch();
+    }
+
+    private int readyOps() {
+        int readyOps = 0;
+        if ((interests & SelectionKey.OP_CONNECT) != 0 && connectDone) {
+            readyOps |= SelectionKey.OP_CONNECT;
+        }
+        if ((interests & SelectionKey.OP_READ) != 0 && (!received.isEmpty() || eof)) {
+            readyOps |= SelectionKey.OP_READ;
+        }
+        if ((interests & SelectionKey.OP_WRITE) != 0 && (channel.isWritable() || error != null)) {
+            readyOps |= SelectionKey.OP_WRITE;
+        }
+        return readyOps;
+    }
+
+    private void dispatch() {
+        dispatchPending = false;
+        if (closed) {
+            return;
+        }
+        eventLoop.beginSocketEvent();
+        try {
+            int readyOps = readyOps();
+            if (readyOps != 0) {
+                readyHandler.onReady(readyOps);
+            }
+            requestRead();
+        } catch (Throwable e) {
+            // like on a selector, close the socket, its connection then fails on its next access
+            log.error("Error while handling a ready socket, closing it", e);
+            close();
+        } finally {
+            eventLoop.endSocketEvent();
+        }
+    }
+
+    private void scheduleDispatch() {
+        if (!dispatchPending && !closed) {
+            dispatchPending = true;
+            eventLoop.execute(dispatchTask);
+        }
+    }
+
+    private void requestRead() {
+        if (closed || reading || eof || !connected || !received.isEmpty()) {
+            return;
+        }
+        if ((interests & SelectionKey.OP_READ) != 0) {
+            reading = true;
+            channel.read();
+        }
+    }
+
+    @Override
+    public void setInterests(int interestOps) {
+        interests = interestOps;
+        if (readyOps() != 0) {
+            scheduleDispatch();
+        }
+        requestRead();
+    }
+
+    @Override
+    public boolean finishConnect() throws IOException {
+        if (error != null) {
+            throw new IOException(error);
+        }
+        return connected;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected && channel.isActive();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int count = 0;
+        ByteBuf buf;
+        while (dst.hasRemaining() && (buf = received.peek()) != null) {
+            int length = Math.min(dst.remaining(), buf.readableBytes());
+            int limit = dst.limit();
+            dst.limit(dst.position() + length);
+            buf.readBytes(dst);
+            dst.limit(limit);
+            count += length;
+            if (datagram || !buf.isReadable()) {
+                // like a DatagramChannel, a datagram larger than dst is truncated
+                received.poll().release();
+            }
+            if (datagram) {
+                break;
+            }
+        }
+        if (count == 0 && received.isEmpty()) {
+            if (error != null) {
+                throw new IOException(error);
+            }
+            if (eof) {
+                return -1;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (error != null) {
+            throw new IOException(error);
+        }
+        int length = src.remaining();
+        if (length == 0 || !channel.isWritable()) {
+            return 0;
+        }
+        ByteBuf buf = channel.alloc().directBuffer(length);
+        buf.writeBytes(src);
+        channel.write(datagram ? new DatagramPacket(buf, address) : buf, channel.voidPromise());
+        if (!flushPending) {
+            // batch all the writes of this iteration into one flush
+            flushPending = true;
+            eventLoop.execute(flushTask);
+        }
+        return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        ByteBuf buf;
+        while ((buf = received.poll()) != null) {
+            buf.release();
+        }
+        channel.close();
+    }
+}
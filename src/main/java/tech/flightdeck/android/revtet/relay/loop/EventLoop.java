@@ -0,0 +1,289 @@
+package tech.flightdeck.android.revtet.relay.loop;
+
+import lombok.extern.slf4j.Slf4j;
+import tech.flightdeck.android.revtet.relay.network.NetworkSocket;
+import tech.flightdeck.android.revtet.relay.transport.Transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single threaded event loop driving the network sockets and the transports having pending work.
+ * <p>
+ * How the loop waits for readiness depends on the network engine, see {@link SelectorEventLoop} and
+ * {@link tech.flightdeck.android.revtet.relay.epoll.EpollEventLoop}. In both cases, transports are scheduled through
+ * {@link #schedule(Transport)} and idle connections are expired by a {@link TimerWheel}.
+ */
+@Slf4j
+public abstract class EventLoop {
+    protected static final int TICK_DURATION = 100;
+
+    private final Queue<Transport> readyTransports = new ConcurrentLinkedQueue<>();
+    private final Set<Transport> transports = ConcurrentHashMap.newKeySet();
+    private final List<Transport> processing = new ArrayList<>();
+    // transports having unflushed data, see Transport#flushLater()
+    private final List<Transport> lingering = new ArrayList<>();
+    private long nextFlushDeadline;
+    private final AtomicInteger load = new AtomicInteger();
+    private final TimerWheel timerWheel;
+    private final LoopStatistics statistics = new LoopStatistics();
+    private int iterationDepth;
+
+    // coarse clock, updated once per iteration and only read from the event loop thread
+    private long now;
+
+    protected EventLoop() {
+        now = System.currentTimeMillis();
+        timerWheel = new TimerWheel(TICK_DURATION, now);
+    }
+
+    public abstract void start();
+
+    public abstract boolean inEventLoop();
+
+    /**
+     * Open a stream socket connecting to {@code address}, reporting {@link SelectionKey#OP_CONNECT} once connected.
+     * <p>
+     * Must only be called from the event loop thread.
+     *
+     * @param address      The destination.
+     * @param readyHandler The handler notified of the readiness, from the event loop thread.
+     * @return The socket, with no interest set.
+     * @throws IOException If the socket cannot be created.
+     */
+    public abstract NetworkSocket openStream(InetSocketAddress address, NetworkSocket.ReadyHandler readyHandler) throws IOException;
+
+    /**
+     * Open a datagram socket connected to {@code address}.
+     * <p>
+     * Must only be called from the event loop thread.
+     *
+     * @param address      The destination.
+     * @param readyHandler The handler notified of the readiness, from the event loop thread.
+     * @return The socket, with no interest set.
+     * @throws IOException If the socket cannot be created.
+     */
+    public abstract NetworkSocket openDatagram(InetSocketAddress address, NetworkSocket.ReadyHandler readyHandler) throws IOException;
+
+    /**
+     * Called when a transport has been added to the ready-list, so that it gets processed.
+     *
+     * @param fromEventLoop Whether the transport has been scheduled from the event loop thread.
+     */
+    protected abstract void onScheduled(boolean fromEventLoop);
+
+    /**
+     * Run a task on the event loop thread.
+     * <p>
+     * May be called from any thread.
+     *
+     * @param task The task.
+     */
+    public abstract void execute(Runnable task);
+
+    public TimerWheel getTimerWheel() {
+        return timerWheel;
+    }
+
+    /**
+     * Get the time at the start of the current loop iteration.
+     * <p>
+     * Must only be called from the event loop thread.
+     *
+     * @return The cached current time, in milliseconds.
+     */
+    public long now() {
+        return now;
+    }
+
+    protected void updateClock() {
+        now = System.currentTimeMillis();
+    }
+
+    public LoopStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Start an iteration: refresh the clock and start measuring, for the {@link StallWatchdog}.
+     * <p>
+     * Nested calls are ignored, only the outermost iteration is measured.
+     */
+    protected void beginIteration() {
+        updateClock();
+        if (iterationDepth++ == 0) {
+            statistics.begin();
+        }
+    }
+
+    /**
+     * @param keys        The number of ready sockets processed.
+     * @param transports  The number of transports serviced.
+     */
+    protected void endIteration(int keys, int transports) {
+        if (--iterationDepth == 0) {
+            statistics.end(keys, transports);
+        }
+    }
+
+    /**
+     * Number of transports attached, or about to be attached, to this event loop.
+     *
+     * @return The current load.
+     */
+    public int getLoad() {
+        return load.get();
+    }
+
+    /**
+     * Reserve a slot for a transport attached to this specific event loop, e.g. to resume a session.
+     */
+    public void reserve() {
+        load.incrementAndGet();
+    }
+
+    /**
+     * Release a slot obtained from {@link EventLoopGroup#next()} which will never be registered.
+     */
+    public void release() {
+        load.decrementAndGet();
+    }
+
+    public void register(Transport transport) {
+        transports.add(transport);
+        ResourceCounters.TRANSPORTS.acquired();
+        schedule(transport);
+    }
+
+    /**
+     * Unregister a transport, which is then disposed (see {@link Transport#dispose()}) on the event loop thread.
+     * <p>
+     * May be called from any thread.
+     *
+     * @param transport The transport.
+     */
+    public void unregister(Transport transport) {
+        if (transports.remove(transport)) {
+            release();
+            ResourceCounters.TRANSPORTS.released();
+            execute(transport::dispose);
+        }
+    }
+
+    /**
+     * Add the transport to the ready-list, so that it is processed during the next loop iteration.
+     * <p>
+     * May be called from any thread.
+     *
+     * @param transport The transport having pending work.
+     */
+    public void schedule(Transport transport) {
+        if (!transport.markScheduled()) {
+            // already in the ready-list
+            return;
+        }
+        readyTransports.add(transport);
+        onScheduled(inEventLoop());
+    }
+
+    /**
+     * Flush the transport at its deadline.
+     * <p>
+     * Must only be called from the event loop thread.
+     *
+     * @param transport The transport having unflushed data.
+     */
+    public void scheduleFlush(Transport transport) {
+        long deadline = transport.getFlushDeadline();
+        if (lingering.isEmpty() || deadline - nextFlushDeadline < 0) {
+            nextFlushDeadline = deadline;
+        }
+        if (!lingering.contains(transport)) {
+            lingering.add(transport);
+        }
+    }
+
+    /**
+     * @return The delay before the next flush deadline in nanoseconds, 0 if it is due, or -1 if there is none.
+     */
+    protected long getFlushDelay() {
+        if (lingering.isEmpty()) {
+            return -1;
+        }
+        return Math.max(0, nextFlushDeadline - System.nanoTime());
+    }
+
+    protected void flushLingeringWrites() {
+        if (lingering.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (nextFlushDeadline - now > 0) {
+            return;
+        }
+        boolean first = true;
+        Iterator<Transport> iterator = lingering.iterator();
+        while (iterator.hasNext()) {
+            Transport transport = iterator.next();
+            if (!transport.hasUnflushedData()) {
+                // flushed meanwhile, e.g. a USB transfer filled up and submitted
+                iterator.remove();
+                continue;
+            }
+            long deadline = transport.getFlushDeadline();
+            if (deadline - now <= 0) {
+                iterator.remove();
+                try {
+                    transport.flush();
+                } catch (Throwable e) {
+                    log.error("Error while flushing a transport, unregistering it", e);
+                    unregister(transport);
+                }
+            } else if (first || deadline - nextFlushDeadline < 0) {
+                nextFlushDeadline = deadline;
+                first = false;
+            }
+        }
+    }
+
+    protected boolean hasReadyTransports() {
+        return !readyTransports.isEmpty();
+    }
+
+    /**
+     * @return The number of transports serviced.
+     */
+    protected int processReadyTransports() {
+        // only process the transports ready at this point, the ones scheduled meanwhile wait for the next iteration
+        Transport transport;
+        while ((transport = readyTransports.poll()) != null) {
+            processing.add(transport);
+        }
+        for (Transport ready : processing) {
+            ready.clearScheduled();
+            try {
+                ready.processReceive();
+                ready.processSend();
+                if (ready.hasPendingWork()) {
+                    schedule(ready);
+                }
+            } catch (Throwable e) {
+                // a bug in the processing of one client must not stall the others
+                log.error("Error while processing a transport, unregistering it", e);
+                unregister(ready);
+            }
+        }
+        int serviced = processing.size();
+        processing.clear();
+        return serviced;
+    }
+}
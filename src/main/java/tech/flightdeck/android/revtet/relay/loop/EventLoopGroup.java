@@ -0,0 +1,86 @@
+package tech.flightdeck.android.revtet.relay.loop;
+
+import io.netty.channel.epoll.Epoll;
+import lombok.extern.slf4j.Slf4j;
+import tech.flightdeck.android.revtet.relay.epoll.EpollEventLoop;
+
+import java.io.IOException;
+
+/**
+ * Fixed pool of event loops, each one owning its own selector and thread.
+ * <p>
+ * A transport, along with its client, router and connections, is pinned to the event loop returned by
+ * {@link #next()} for its whole lifetime.
+ * <p>
+ * The network engine is selected by the {@code revtet.engine} system property: {@code nio} (default) or
+ * {@code epoll}, which falls back to {@code nio} when the native transport is not available.
+ */
+@Slf4j
+public class EventLoopGroup {
+    private static final String ENGINE = System.getProperty("revtet.engine", "nio");
+
+    private final EventLoop[] eventLoops;
+    private int nextIndex;
+
+    public EventLoopGroup(int size) throws IOException {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Event loop count must be positive: " + size);
+        }
+        boolean epoll = useEpoll();
+        eventLoops = new EventLoop[size];
+        for (int i = 0; i < size; ++i) {
+            String name = String.format("Selector %d", i);
+            eventLoops[i] = epoll ? new EpollEventLoop(name) : new SelectorEventLoop(name);
+        }
+    }
+
+    private static boolean useEpoll() {
+        if ("nio".equals(ENGINE)) {
+            return false;
+        }
+        if (!"epoll".equals(ENGINE)) {
+            log.warn("Unknown network engine {}, using nio", ENGINE);
+            return false;
+        }
+        try {
+            if (!Epoll.isAvailable()) {
+                log.warn("Native epoll transport not available, using nio", Epoll.unavailabilityCause());
+                return false;
+            }
+        } catch (NoClassDefFoundError e) {
+            // the Netty dependency is optional
+            log.warn("Native epoll transport not on the classpath, using nio");
+            return false;
+        }
+        log.info("Using native epoll transport");
+        return true;
+    }
+
+    public void start() {
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.start();
+        }
+        log.info("{} event loops started.", eventLoops.length);
+        if (StallWatchdog.isEnabled()) {
+            new StallWatchdog(eventLoops).start();
+        }
+    }
+
+    /**
+     * Select the least loaded event loop, ties being broken in a round-robin fashion.
+     *
+     * @return The event loop to attach a new transport to.
+     */
+    public synchronized EventLoop next() {
+        EventLoop selected = null;
+        for (int i = 0; i < eventLoops.length; ++i) {
+            EventLoop candidate = eventLoops[(nextIndex + i) % eventLoops.length];
+            if (selected == null || candidate.getLoad() < selected.getLoad()) {
+                selected = candidate;
+            }
+        }
+        nextIndex = (nextIndex + 1) % eventLoops.length;
+        selected.reserve();
+        return selected;
+    }
+}
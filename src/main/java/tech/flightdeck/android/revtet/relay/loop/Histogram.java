@@ -0,0 +1,74 @@
+package tech.flightdeck.android.revtet.relay.loop;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative values, with power-of-two buckets.
+ * <p>
+ * Values must be recorded by a single thread, they may be read from any thread.
+ */
+public class Histogram {
+    // bucket 0 holds 0, bucket i holds [2^(i-1), 2^i)
+    private static final int BUCKET_COUNT = 64;
+    // indexes in totals
+    private static final int COUNT = 0;
+    private static final int MAX = 1;
+    private static final int SUM = 2;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLongArray totals = new AtomicLongArray(3);
+
+    /**
+     * Must only be called from the recording thread.
+     *
+     * @param value The value to record.
+     */
+    public void record(long value) {
+        int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, value)));
+        // single writer, ordered stores are enough
+        buckets.lazySet(bucket, buckets.get(bucket) + 1);
+        totals.lazySet(COUNT, totals.get(COUNT) + 1);
+        totals.lazySet(SUM, totals.get(SUM) + value);
+        if (value > totals.get(MAX)) {
+            totals.lazySet(MAX, value);
+        }
+    }
+
+    public long getCount() {
+        return totals.get(COUNT);
+    }
+
+    public long getMax() {
+        return totals.get(MAX);
+    }
+
+    public long getSum() {
+        return totals.get(SUM);
+    }
+
+    /**
+     * @param percentile The percentile, between 0 and 100.
+     * @return An upper bound of the value at this percentile.
+     */
+    public long getPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return i == 0 ? 0 : Math.min((1L << i) - 1, getMax());
+            }
+        }
+        return getMax();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d sum=%d p50<=%d p99<=%d p99.9<=%d max=%d",
+                getCount(), getSum(), getPercentile(50), getPercentile(99), getPercentile(99.9), getMax());
+    }
+}
@@ -0,0 +1,59 @@
+package tech.flightdeck.android.revtet.relay.loop;
+
+/**
+ * Statistics of the iterations of an event loop, recorded by the event loop thread and read by the
+ * {@link StallWatchdog}.
+ */
+public class LoopStatistics {
+    private final Histogram iterationDurations = new Histogram();
+    private final Histogram keysProcessed = new Histogram();
+    private final Histogram transportsServiced = new Histogram();
+
+    private volatile Thread thread;
+    // System.nanoTime() at the start of the current iteration, 0 while waiting for events
+    private volatile long iterationStart;
+
+    void begin() {
+        thread = Thread.currentThread();
+        long start = System.nanoTime();
+        // 0 means idle
+        iterationStart = start == 0 ? 1 : start;
+    }
+
+    void end(int keys, int transports) {
+        long duration = System.nanoTime() - iterationStart;
+        iterationStart = 0;
+        iterationDurations.record(duration / 1000);
+        keysProcessed.record(keys);
+        transportsServiced.record(transports);
+    }
+
+    /**
+     * @return The thread running the iterations, or {@code null} if none has run yet.
+     */
+    public Thread getThread() {
+        return thread;
+    }
+
+    /**
+     * @return The {@link System#nanoTime()} at the start of the current iteration, or 0 if the loop is waiting.
+     */
+    public long getIterationStart() {
+        return iterationStart;
+    }
+
+    /**
+     * @return The iteration durations, in microseconds.
+     */
+    public Histogram getIterationDurations() {
+        return iterationDurations;
+    }
+
+    public Histogram getKeysProcessed() {
+        return keysProcessed;
+    }
+
+    public Histogram getTransportsServiced() {
+        return transportsServiced;
+    }
+}
@@ -0,0 +1,84 @@
+package tech.flightdeck.android.revtet.relay.loop;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unbounded lock-free queue for any number of producer threads and exactly one consumer thread.
+ * <p>
+ * Producers only swap the tail (one atomic exchange per offer) then link the previous node; the consumer follows the
+ * links from a stub node without any atomic operation. A consumer may transiently see the queue empty while an offer
+ * is in progress, the producer always notifies it afterwards anyway.
+ *
+ * @param <E> The element type.
+ */
+public class MpscLinkedQueue<E> {
+    private static final class Node<E> {
+        private E element;
+        private volatile Node<E> next;
+
+        private Node(E element) {
+            this.element = element;
+        }
+    }
+
+    // last node, swapped by the producers
+    private final AtomicReference<Node<E>> tail;
+    // stub node preceding the next element, owned by the consumer
+    private Node<E> head;
+
+    public MpscLinkedQueue() {
+        Node<E> stub = new Node<>(null);
+        head = stub;
+        tail = new AtomicReference<>(stub);
+    }
+
+    /**
+     * May be called from any thread.
+     *
+     * @param element The element to add, not {@code null}.
+     */
+    public void offer(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        Node<E> node = new Node<>(element);
+        Node<E> previous = tail.getAndSet(node);
+        previous.next = node;
+    }
+
+    /**
+     * Must only be called from the consumer thread.
+     *
+     * @return The next element, without removing it, or {@code null} if the queue is empty.
+     */
+    public E peek() {
+        Node<E> next = head.next;
+        return next == null ? null : next.element;
+    }
+
+    /**
+     * Must only be called from the consumer thread.
+     *
+     * @return The next element, or {@code null} if the queue is empty.
+     */
+    public E poll() {
+        Node<E> next = head.next;
+        if (next == null) {
+            return null;
+        }
+        E element = next.element;
+        // the node becomes the new stub
+        next.element = null;
+        head = next;
+        return element;
+    }
+
+    /**
+     * Must only be called from the consumer thread.
+     *
+     * @return {@code true} if the queue is empty.
+     */
+    public boolean isEmpty() {
+        return head.next == null;
+    }
+}
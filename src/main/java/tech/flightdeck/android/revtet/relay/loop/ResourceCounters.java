@@ -0,0 +1,74 @@
+package tech.flightdeck.android.revtet.relay.loop;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the resources acquired and released over the lifetime of the relay, to check that detaching phones does
+ * not leak anything: once all phones are detached, the live count of each counter must drop back to 0.
+ * <p>
+ * They are reported with the iteration statistics (see {@link StallWatchdog}) and after each teardown.
+ */
+public final class ResourceCounters {
+    public static final Counter CLIENTS = new Counter();
+    public static final Counter TRANSPORTS = new Counter();
+    public static final Counter CONNECTIONS = new Counter();
+    public static final Counter USB_TRANSFERS = new Counter();
+    /**
+     * Direct buffers taken from and given back to the pool.
+     */
+    public static final Counter USB_BUFFERS = new Counter();
+    /**
+     * Memory-mapped segments of the TCP connections reading ahead of their client.
+     */
+    public static final Counter SPILL_SEGMENTS = new Counter();
+
+    private ResourceCounters() {
+        // not instantiable
+    }
+
+    /**
+     * Number of resources acquired and released, from any thread.
+     */
+    public static final class Counter {
+        private final LongAdder acquired = new LongAdder();
+        private final LongAdder released = new LongAdder();
+
+        private Counter() {
+        }
+
+        public void acquired() {
+            acquired.increment();
+        }
+
+        public void released() {
+            released.increment();
+        }
+
+        public long getAcquired() {
+            return acquired.sum();
+        }
+
+        public long getReleased() {
+            return released.sum();
+        }
+
+        /**
+         * @return The number of resources acquired and not released yet, possibly off by the operations in progress.
+         */
+        public long getLive() {
+            // read released first, so that a concurrent acquire/release pair never makes it negative
+            long released = getReleased();
+            return getAcquired() - released;
+        }
+
+        @Override
+        public String toString() {
+            return getLive() + " live/" + getAcquired();
+        }
+    }
+
+    public static String describe() {
+        return String.format("clients %s, transports %s, connections %s, USB transfers %s, USB buffers %s, "
+                + "spill segments %s", CLIENTS, TRANSPORTS, CONNECTIONS, USB_TRANSFERS, USB_BUFFERS, SPILL_SEGMENTS);
+    }
+}
@@ -0,0 +1,161 @@
+package tech.flightdeck.android.revtet.relay.loop;
+
+import lombok.extern.slf4j.Slf4j;
+import tech.flightdeck.android.revtet.relay.network.NetworkSocket;
+import tech.flightdeck.android.revtet.relay.network.NioSocket;
+import tech.flightdeck.android.revtet.relay.network.SelectionHandler;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Event loop based on a java.nio {@link Selector}.
+ * <p>
+ * The loop blocks in {@link Selector#select(long)} until a socket is ready, a transport is scheduled (which wakes the
+ * selector up) or the next timeout of its {@link TimerWheel} is due.
+ */
+@Slf4j
+public class SelectorEventLoop extends EventLoop {
+    private final String name;
+    private final Selector selector;
+    private final MpscLinkedQueue<Runnable> tasks = new MpscLinkedQueue<>();
+
+    private Thread thread;
+
+    public SelectorEventLoop(String name) throws IOException {
+        this.name = name;
+        selector = Selector.open();
+    }
+
+    @Override
+    public void start() {
+        thread = new Thread(this::run, name);
+        thread.start();
+    }
+
+    @Override
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    @Override
+    public NetworkSocket openStream(InetSocketAddress address, NetworkSocket.ReadyHandler readyHandler) throws IOException {
+        SocketChannel socketChannel = SocketChannel.open();
+        try {
+            socketChannel.configureBlocking(false);
+            socketChannel.connect(address);
+            return new NioSocket(socketChannel, selector, readyHandler);
+        } catch (IOException e) {
+            socketChannel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public NetworkSocket openDatagram(InetSocketAddress address, NetworkSocket.ReadyHandler readyHandler) throws IOException {
+        DatagramChannel datagramChannel = DatagramChannel.open();
+        try {
+            datagramChannel.configureBlocking(false);
+            datagramChannel.connect(address);
+            return new NioSocket(datagramChannel, selector, readyHandler);
+        } catch (IOException e) {
+            datagramChannel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    protected void onScheduled(boolean fromEventLoop) {
+        // from the event loop, the ready-list is checked before selecting
+        if (!fromEventLoop) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                log.error("Error in event loop task", e);
+            }
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                select();
+                beginIteration();
+                int keys = processSelectedKeys();
+                runTasks();
+                int transports = processReadyTransports();
+                flushLingeringWrites();
+                getTimerWheel().advance(now());
+                endIteration(keys, transports);
+            }
+        } catch (IOException e) {
+            log.error("Error in selector thread.", e);
+        }
+    }
+
+    private void select() throws IOException {
+        long flushDelay = getFlushDelay();
+        if (hasReadyTransports() || !tasks.isEmpty() || flushDelay == 0) {
+            selector.selectNow();
+            return;
+        }
+        long timeout = -1;
+        long deadline = getTimerWheel().nextDeadline();
+        if (deadline != -1) {
+            timeout = Math.max(1, deadline - System.currentTimeMillis());
+        }
+        if (flushDelay > 0) {
+            // select() has a millisecond resolution, round up
+            long flushTimeout = TimeUnit.NANOSECONDS.toMillis(flushDelay + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+            timeout = timeout == -1 ? flushTimeout : Math.min(timeout, flushTimeout);
+        }
+        if (timeout == -1) {
+            selector.select();
+        } else {
+            selector.select(timeout);
+        }
+    }
+
+    private int processSelectedKeys() {
+        Set<SelectionKey> selectedKeys = selector.selectedKeys();
+        int count = selectedKeys.size();
+        for (SelectionKey selectedKey : selectedKeys) {
+            SelectionHandler selectionHandler = (SelectionHandler) selectedKey.attachment();
+            try {
+                selectionHandler.onReady(selectedKey);
+            } catch (Throwable e) {
+                // close the socket, its connection then fails on its next access like on any socket error
+                log.error("Error while handling a ready socket, closing it", e);
+                selectedKey.cancel();
+                try {
+                    selectedKey.channel().close();
+                } catch (IOException closeException) {
+                    log.warn("Cannot close socket", closeException);
+                }
+            }
+        }
+        selectedKeys.clear();
+        return count;
+    }
+}
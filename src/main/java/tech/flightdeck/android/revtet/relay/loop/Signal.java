@@ -0,0 +1,39 @@
+package tech.flightdeck.android.revtet.relay.loop;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Wakeup signal for a single waiting thread.
+ * <p>
+ * A signal raised while nobody waits is not lost: the next {@link #await()} returns immediately.
+ */
+public class Signal {
+    private final AtomicBoolean signaled = new AtomicBoolean();
+    private volatile Thread waiter;
+
+    /**
+     * May be called from any thread.
+     */
+    public void signal() {
+        if (!signaled.getAndSet(true)) {
+            Thread thread = waiter;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    /**
+     * Park the current thread until the signal is raised (or the thread is interrupted), then reset it.
+     */
+    public void await() {
+        waiter = Thread.currentThread();
+        while (!signaled.getAndSet(false)) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            LockSupport.park(this);
+        }
+    }
+}
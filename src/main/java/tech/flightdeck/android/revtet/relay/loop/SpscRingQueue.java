@@ -0,0 +1,129 @@
+package tech.flightdeck.android.revtet.relay.loop;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer thread.
+ * <p>
+ * Each side only writes its own index, published with an ordered store, and caches the index of the other side to
+ * avoid reading it on every call.
+ *
+ * @param <E> The element type.
+ */
+public class SpscRingQueue<E> {
+    private final Object[] elements;
+    private final int mask;
+
+    // index of the next element to poll, written by the consumer only
+    private final AtomicLong head = new AtomicLong();
+    // index of the next element to offer, written by the producer only
+    private final AtomicLong tail = new AtomicLong();
+
+    // producer-local copy of head
+    private long cachedHead;
+    // consumer-local copy of tail
+    private long cachedTail;
+
+    /**
+     * @param capacity The capacity, rounded up to the next power of two.
+     */
+    public SpscRingQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        elements = new Object[size];
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return elements.length;
+    }
+
+    /**
+     * Must only be called from the producer thread.
+     *
+     * @param element The element to add.
+     * @return {@code true} if the element was added, {@code false} if the queue is full.
+     */
+    public boolean offer(E element) {
+        long t = tail.get();
+        if (t - cachedHead >= elements.length) {
+            cachedHead = head.get();
+            if (t - cachedHead >= elements.length) {
+                return false;
+            }
+        }
+        elements[(int) t & mask] = element;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Must only be called from the producer thread.
+     *
+     * @return {@code true} if the next {@link #offer(Object)} would fail.
+     */
+    public boolean isFull() {
+        long t = tail.get();
+        if (t - cachedHead >= elements.length) {
+            cachedHead = head.get();
+        }
+        return t - cachedHead >= elements.length;
+    }
+
+    /**
+     * Must only be called from the consumer thread.
+     *
+     * @return The next element, without removing it, or {@code null} if the queue is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        long h = head.get();
+        if (h >= cachedTail) {
+            cachedTail = tail.get();
+            if (h >= cachedTail) {
+                return null;
+            }
+        }
+        return (E) elements[(int) h & mask];
+    }
+
+    /**
+     * Must only be called from the consumer thread.
+     *
+     * @return The next element, or {@code null} if the queue is empty.
+     */
+    public E poll() {
+        E element = peek();
+        if (element != null) {
+            long h = head.get();
+            elements[(int) h & mask] = null;
+            head.lazySet(h + 1);
+        }
+        return element;
+    }
+
+    /**
+     * May be called from any thread, the result is only a snapshot.
+     *
+     * @return {@code true} if the queue is empty.
+     */
+    public boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    /**
+     * May be called from any thread, the result is only a snapshot.
+     *
+     * @return The number of elements in the queue.
+     */
+    public int size() {
+        long h = head.get();
+        long size = tail.get() - h;
+        return (int) Math.max(0, Math.min(size, elements.length));
+    }
+}
@@ -0,0 +1,109 @@
+package tech.flightdeck.android.revtet.relay.loop;
+
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watchdog detecting event loop iterations lasting too long.
+ * <p>
+ * While an iteration exceeds {@code revtet.watchdog.threshold} milliseconds, the stack of the event loop thread is
+ * sampled (up to {@link #MAX_SAMPLES_PER_STALL} times), so that the handler responsible for the stall can be found
+ * in the {@code revtet.stalls} log (a rolling file, see {@code log4j.properties}). The iteration statistics are also
+ * reported there every {@code revtet.watchdog.reportInterval} milliseconds.
+ * <p>
+ * A threshold of 0 disables the watchdog.
+ */
+@Slf4j
+public class StallWatchdog {
+    private static final long THRESHOLD = Long.getLong("revtet.watchdog.threshold", 100);
+    private static final long REPORT_INTERVAL = Long.getLong("revtet.watchdog.reportInterval", 60 * 1000);
+    private static final int MAX_SAMPLES_PER_STALL = 10;
+
+    private static final Logger STALLS = LoggerFactory.getLogger("revtet.stalls");
+
+    private final EventLoop[] eventLoops;
+    // per event loop, the start of the last stalled iteration and the number of samples taken for it
+    private final long[] stalledIterations;
+    private final int[] samples;
+
+    public StallWatchdog(EventLoop[] eventLoops) {
+        this.eventLoops = eventLoops;
+        stalledIterations = new long[eventLoops.length];
+        samples = new int[eventLoops.length];
+    }
+
+    public static boolean isEnabled() {
+        return THRESHOLD > 0;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this::run, "Stall Watchdog");
+        thread.setDaemon(true);
+        thread.start();
+        log.info("Stall watchdog started, threshold {} ms", THRESHOLD);
+    }
+
+    private void run() {
+        long period = Math.max(10, THRESHOLD / 2);
+        long nextReport = System.currentTimeMillis() + REPORT_INTERVAL;
+        try {
+            while (true) {
+                Thread.sleep(period);
+                for (int i = 0; i < eventLoops.length; ++i) {
+                    check(i);
+                }
+                if (System.currentTimeMillis() >= nextReport) {
+                    report();
+                    nextReport += REPORT_INTERVAL;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void check(int index) {
+        LoopStatistics statistics = eventLoops[index].getStatistics();
+        long iterationStart = statistics.getIterationStart();
+        if (iterationStart == 0) {
+            return;
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - iterationStart);
+        if (elapsed < THRESHOLD) {
+            return;
+        }
+        if (stalledIterations[index] != iterationStart) {
+            stalledIterations[index] = iterationStart;
+            samples[index] = 0;
+        }
+        if (samples[index] == MAX_SAMPLES_PER_STALL) {
+            return;
+        }
+        ++samples[index];
+        Thread thread = statistics.getThread();
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("%s stalled for %d ms (sample %d, state %s)",
+                thread.getName(), elapsed, samples[index], thread.getState()));
+        for (StackTraceElement element : thread.getStackTrace()) {
+            builder.append(System.lineSeparator()).append("\tat ").append(element);
+        }
+        STALLS.warn(builder.toString());
+    }
+
+    private void report() {
+        for (EventLoop eventLoop : eventLoops) {
+            LoopStatistics statistics = eventLoop.getStatistics();
+            Thread thread = statistics.getThread();
+            if (thread == null) {
+                continue;
+            }
+            STALLS.info("{}: iteration us [{}], keys [{}], transports [{}]", thread.getName(),
+                    statistics.getIterationDurations(), statistics.getKeysProcessed(),
+                    statistics.getTransportsServiced());
+        }
+        STALLS.info("Resources: {}", ResourceCounters.describe());
+    }
+}
@@ -0,0 +1,118 @@
+package tech.flightdeck.android.revtet.relay.loop;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Factory for the threads running blocking tasks (USB transfers, pings, pipeline stages).
+ * <p>
+ * With {@code -Drevtet.threads=virtual} on a Java 21+ runtime, they run on virtual threads, so that the thread count
+ * and the stack memory do not depend on the number of phones and in-flight pings. Virtual threads are looked up
+ * reflectively, so that the same build still runs on older runtimes, falling back to platform threads.
+ * <p>
+ * Event loop threads are always platform threads.
+ */
+@Slf4j
+public final class Threads {
+    public enum Mode {
+        PLATFORM,
+        VIRTUAL
+    }
+
+    private static final Mode MODE;
+
+    // Thread.ofVirtual(), Thread.Builder.OfVirtual.name(String) and Thread.Builder.unstarted(Runnable)
+    private static final MethodHandle OF_VIRTUAL;
+    private static final MethodHandle NAME;
+    private static final MethodHandle UNSTARTED;
+    // Executors.newVirtualThreadPerTaskExecutor()
+    private static final MethodHandle NEW_VIRTUAL_EXECUTOR;
+
+    static {
+        Mode mode = parseMode(System.getProperty("revtet.threads", "platform"));
+        MethodHandle ofVirtual = null;
+        MethodHandle name = null;
+        MethodHandle unstarted = null;
+        MethodHandle newVirtualExecutor = null;
+        if (mode == Mode.VIRTUAL) {
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                Class<?> ofVirtualClass = Class.forName("java.lang.Thread$Builder$OfVirtual");
+                ofVirtual = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(ofVirtualClass));
+                name = lookup.findVirtual(ofVirtualClass, "name", MethodType.methodType(ofVirtualClass, String.class));
+                unstarted = lookup.findVirtual(builderClass, "unstarted", MethodType.methodType(Thread.class, Runnable.class));
+                newVirtualExecutor = lookup.findStatic(Executors.class, "newVirtualThreadPerTaskExecutor",
+                        MethodType.methodType(ExecutorService.class));
+            } catch (ReflectiveOperationException e) {
+                log.warn("Virtual threads are not supported by this runtime, using platform threads");
+                mode = Mode.PLATFORM;
+            }
+        }
+        MODE = mode;
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        UNSTARTED = unstarted;
+        NEW_VIRTUAL_EXECUTOR = newVirtualExecutor;
+        log.info("Blocking tasks run on {} threads", MODE.name().toLowerCase());
+    }
+
+    private Threads() {
+        // not instantiable
+    }
+
+    private static Mode parseMode(String value) {
+        try {
+            return Mode.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            log.warn("Unknown revtet.threads mode \"{}\" (expected platform or virtual), using platform threads", value);
+            return Mode.PLATFORM;
+        }
+    }
+
+    public static Mode getMode() {
+        return MODE;
+    }
+
+    /**
+     * Create a thread (not started) for a blocking task, according to the execution mode.
+     *
+     * @param name     The thread name.
+     * @param runnable The task.
+     * @return The new thread.
+     */
+    public static Thread newThread(String name, Runnable runnable) {
+        if (MODE == Mode.VIRTUAL) {
+            try {
+                Object builder = OF_VIRTUAL.invoke();
+                builder = NAME.invoke(builder, name);
+                return (Thread) UNSTARTED.invoke(builder, runnable);
+            } catch (Throwable e) {
+                throw new IllegalStateException("Cannot create virtual thread", e);
+            }
+        }
+        return new Thread(runnable, name);
+    }
+
+    /**
+     * Create an executor for short blocking tasks, according to the execution mode.
+     *
+     * @return A virtual-thread-per-task executor in virtual mode, a cached thread pool otherwise.
+     */
+    public static ExecutorService newExecutor() {
+        if (MODE == Mode.VIRTUAL) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke();
+            } catch (Throwable e) {
+                throw new IllegalStateException("Cannot create virtual thread executor", e);
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+}
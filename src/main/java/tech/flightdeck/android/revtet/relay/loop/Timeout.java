@@ -0,0 +1,50 @@
+package tech.flightdeck.android.revtet.relay.loop;
+
+/**
+ * Handle on a task scheduled in a {@link TimerWheel}.
+ * <p>
+ * Timeouts are intrusive list nodes, so that scheduling and cancelling are O(1). Like the wheel itself, they must
+ * only be used from the event loop thread.
+ */
+public final class Timeout {
+    private final TimerWheel wheel;
+    private final Runnable task;
+
+    long deadlineTick;
+    Timeout prev;
+    Timeout next;
+
+    Timeout(TimerWheel wheel, Runnable task) {
+        this.wheel = wheel;
+        this.task = task;
+    }
+
+    public boolean isScheduled() {
+        return prev != null;
+    }
+
+    public void cancel() {
+        if (prev != null) {
+            unlink();
+            wheel.cancelled();
+        }
+    }
+
+    void unlink() {
+        prev.next = next;
+        next.prev = prev;
+        prev = null;
+        next = null;
+    }
+
+    void insertBefore(Timeout sentinel) {
+        prev = sentinel.prev;
+        next = sentinel;
+        prev.next = this;
+        sentinel.prev = this;
+    }
+
+    void run() {
+        task.run();
+    }
+}
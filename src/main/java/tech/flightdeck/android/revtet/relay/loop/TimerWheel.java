@@ -0,0 +1,164 @@
+package tech.flightdeck.android.revtet.relay.loop;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Hierarchical timing wheel, used to expire idle connections in O(expired) rather than by scanning all of them.
+ * <p>
+ * Level {@code L} has {@link #SLOTS} slots, each one covering {@code SLOTS^L} ticks. A timeout is stored in the lowest
+ * level able to hold its deadline, and is cascaded to the lower levels as time advances.
+ * <p>
+ * Not thread-safe, it must only be used from its event loop thread.
+ */
+@Slf4j
+public class TimerWheel {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    private static final long MAX_DELTA = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    private final long tickDuration;
+    private final Timeout[][] wheel = new Timeout[LEVELS][SLOTS];
+    private long currentTick;
+    // number of scheduled timeouts, so that an idle wheel jumps to the current tick without scanning its slots
+    private int size;
+
+    /**
+     * @param tickDuration Duration of a tick, in milliseconds.
+     * @param now          Current time, in milliseconds.
+     */
+    public TimerWheel(long tickDuration, long now) {
+        this.tickDuration = tickDuration;
+        currentTick = now / tickDuration;
+        for (Timeout[] level : wheel) {
+            for (int i = 0; i < SLOTS; ++i) {
+                Timeout sentinel = new Timeout(this, null);
+                sentinel.prev = sentinel;
+                sentinel.next = sentinel;
+                level[i] = sentinel;
+            }
+        }
+    }
+
+    public Timeout newTimeout(Runnable task) {
+        return new Timeout(this, task);
+    }
+
+    /**
+     * Schedule (or reschedule) a timeout.
+     *
+     * @param timeout  The timeout, created by {@link #newTimeout(Runnable)}.
+     * @param deadline Absolute deadline, in milliseconds.
+     */
+    public void schedule(Timeout timeout, long deadline) {
+        timeout.cancel();
+        // round up, a timeout must never fire before its deadline
+        timeout.deadlineTick = Math.max((deadline + tickDuration - 1) / tickDuration, currentTick + 1);
+        insert(timeout);
+        ++size;
+    }
+
+    /**
+     * Called by {@link Timeout#cancel()}, once unlinked.
+     */
+    void cancelled() {
+        --size;
+    }
+
+    /**
+     * @return The number of scheduled timeouts.
+     */
+    public int size() {
+        return size;
+    }
+
+    private void insert(Timeout timeout) {
+        long delta = Math.min(timeout.deadlineTick - currentTick, MAX_DELTA);
+        long tick = currentTick + Math.max(delta, 0);
+        int level = 0;
+        while (delta >= SLOTS) {
+            delta >>= SLOT_BITS;
+            ++level;
+        }
+        int slot = (int) (tick >> (SLOT_BITS * level)) & SLOT_MASK;
+        timeout.insertBefore(wheel[level][slot]);
+    }
+
+    /**
+     * Run all the timeouts expired at {@code now}.
+     *
+     * @param now Current time, in milliseconds.
+     */
+    public void advance(long now) {
+        long targetTick = now / tickDuration;
+        if (targetTick > currentTick && size == 0) {
+            currentTick = targetTick;
+            return;
+        }
+        while (currentTick < targetTick) {
+            ++currentTick;
+            cascade();
+            expire(wheel[0][(int) currentTick & SLOT_MASK]);
+        }
+    }
+
+    private void cascade() {
+        long tick = currentTick;
+        for (int level = 1; level < LEVELS && (tick & SLOT_MASK) == 0; ++level) {
+            tick >>= SLOT_BITS;
+            Timeout sentinel = wheel[level][(int) tick & SLOT_MASK];
+            Timeout timeout = sentinel.next;
+            while (timeout != sentinel) {
+                Timeout next = timeout.next;
+                timeout.unlink();
+                insert(timeout);
+                timeout = next;
+            }
+        }
+    }
+
+    private static void expire(Timeout sentinel) {
+        Timeout timeout;
+        while ((timeout = sentinel.next) != sentinel) {
+            timeout.cancel();
+            try {
+                // the task may reschedule its own timeout
+                timeout.run();
+            } catch (Throwable e) {
+                log.error("Error in timeout task", e);
+            }
+        }
+    }
+
+    /**
+     * Compute the next time at which {@link #advance(long)} has work to do.
+     *
+     * @return The absolute time in milliseconds, or -1 if no timeout is scheduled.
+     */
+    public long nextDeadline() {
+        if (size == 0) {
+            return -1;
+        }
+        boolean higherLevels = false;
+        for (int level = 1; level < LEVELS && !higherLevels; ++level) {
+            for (Timeout sentinel : wheel[level]) {
+                if (sentinel.next != sentinel) {
+                    higherLevels = true;
+                    break;
+                }
+            }
+        }
+        for (long tick = currentTick + 1; tick <= currentTick + SLOTS; ++tick) {
+            if ((tick & SLOT_MASK) == 0 && higherLevels) {
+                // a cascade may bring timeouts down to the first level
+                return tick * tickDuration;
+            }
+            Timeout sentinel = wheel[0][(int) tick & SLOT_MASK];
+            if (sentinel.next != sentinel) {
+                return tick * tickDuration;
+            }
+        }
+        return -1;
+    }
+}
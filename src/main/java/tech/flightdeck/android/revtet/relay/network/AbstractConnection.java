@@ -2,6 +2,9 @@ package tech.flightdeck.android.revtet.relay.network;
 
 import lombok.extern.slf4j.Slf4j;
 import tech.flightdeck.android.revtet.relay.entity.Client;
+import tech.flightdeck.android.revtet.relay.loop.EventLoop;
+import tech.flightdeck.android.revtet.relay.loop.ResourceCounters;
+import tech.flightdeck.android.revtet.relay.loop.Timeout;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -12,10 +15,61 @@ public abstract class AbstractConnection implements Connection {
 
     private final ConnectionId id;
     private final Client client;
+    private final EventLoop eventLoop;
 
-    protected AbstractConnection(ConnectionId id, Client client) {
+    private final FlowMeter flowMeter = new FlowMeter();
+    private final QueuedFlow queuedFlow = new QueuedFlow();
+    private final long idleTimeout;
+    private final Timeout expiryTimeout;
+    private long idleSince;
+
+    protected AbstractConnection(ConnectionId id, Client client, EventLoop eventLoop, long idleTimeout) {
         this.id = id;
         this.client = client;
+        this.eventLoop = eventLoop;
+        this.idleTimeout = idleTimeout;
+
+        idleSince = eventLoop.now();
+        expiryTimeout = eventLoop.getTimerWheel().newTimeout(this::checkExpired);
+    }
+
+    /**
+     * Start tracking the idle time. Must be called once, when the connection is fully initialized: a connection whose
+     * constructor throws (e.g. because its socket cannot be opened) is never counted as live.
+     */
+    protected void scheduleExpiry() {
+        ResourceCounters.CONNECTIONS.acquired();
+        eventLoop.getTimerWheel().schedule(expiryTimeout, idleSince + idleTimeout);
+    }
+
+    protected EventLoop getEventLoop() {
+        return eventLoop;
+    }
+
+    /**
+     * Mark the connection as active. The expiry timeout is not rescheduled eagerly, it checks the idle time when it
+     * fires.
+     */
+    protected void touch() {
+        idleSince = eventLoop.now();
+    }
+
+    protected boolean isIdle() {
+        return eventLoop.now() >= idleSince + idleTimeout;
+    }
+
+    private void checkExpired() {
+        if (isExpired()) {
+            log.info("Remove expired connection: {}", id);
+            close();
+            return;
+        }
+        long deadline = idleSince + idleTimeout;
+        if (deadline <= eventLoop.now()) {
+            // idle, but not expirable in its current state
+            deadline = eventLoop.now() + idleTimeout;
+        }
+        eventLoop.getTimerWheel().schedule(expiryTimeout, deadline);
     }
 
     @Override
@@ -23,17 +77,39 @@ public abstract class AbstractConnection implements Connection {
         return id;
     }
 
-    protected void close() {
+    @Override
+    public void close() {
+        expiryTimeout.cancel();
         disconnect();
         client.getRouter().remove(this);
+        ResourceCounters.CONNECTIONS.released();
     }
 
     protected void consume(PacketSource source) {
-        client.consume(source);
+        consume(source, classify(source.get()));
+    }
+
+    protected void consume(PacketSource source, TrafficClass trafficClass) {
+        client.consume(source, trafficClass);
     }
 
     protected boolean sendToClient(IPv4Packet packet) {
-        return client.sendToClient(packet);
+        return client.sendToClient(packet, classify(packet), queuedFlow);
+    }
+
+    /**
+     * The packets sent directly and those consumed from the sources of this connection are kept in order.
+     */
+    public QueuedFlow getQueuedFlow() {
+        return queuedFlow;
+    }
+
+    protected TrafficClass classify(IPv4Packet packet) {
+        return TrafficClassifier.classify(packet, flowMeter, eventLoop.now());
+    }
+
+    protected void injectToClient(IPv4Packet packet) {
+        client.inject(packet);
     }
 
     private static InetAddress getRewrittenAddress(int ip) {
@@ -38,6 +38,21 @@ public class Binary {
         return result;
     }
 
+    /**
+     * Copy as many bytes as possible from {@code src} to {@code dst}, in bulk.
+     *
+     * @return The number of bytes copied.
+     */
+    public static int transfer(ByteBuffer src, ByteBuffer dst) {
+        int length = Math.min(src.remaining(), dst.remaining());
+        // src may be a direct buffer, without backing array
+        int limit = src.limit();
+        src.limit(src.position() + length);
+        dst.put(src);
+        src.limit(limit);
+        return length;
+    }
+
     public static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
         // save
         int position = buffer.position();
@@ -0,0 +1,24 @@
+package tech.flightdeck.android.revtet.relay.network;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Source of received data, handed over as whole buffers instead of being copied.
+ * <p>
+ * Must only be used by a single consumer thread.
+ */
+public interface BufferSource {
+    /**
+     * Take the next received buffer. The caller owns it until it is given back by {@link #release(ByteBuffer)}.
+     *
+     * @return The buffer, its data between its position and its limit, or {@code null} if none is available.
+     */
+    ByteBuffer take();
+
+    /**
+     * Give back a buffer obtained from {@link #take()}, so that it can receive data again.
+     *
+     * @param buffer The buffer, which must not be used anymore.
+     */
+    void release(ByteBuffer buffer);
+}
@@ -0,0 +1,173 @@
+package tech.flightdeck.android.revtet.relay.network;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Queue of the packets of a flow for the client, managed by CoDel (RFC 8289): packets are timestamped when enqueued,
+ * and dropped at the head once their sojourn time has stayed above {@code revtet.aqm.target} for
+ * {@code revtet.aqm.interval}, more and more often until the standing queue is gone.
+ * <p>
+ * Combined with the round robin of the {@link FlowScheduler} over the flows, this is FQ-CoDel: a greedy flow only
+ * builds a standing queue in its own queue, and only its packets are dropped.
+ * <p>
+ * Not thread-safe, it must only be used from the event loop thread.
+ */
+public class CoDelQueue {
+    /**
+     * Whether the packets for the client are queued per flow and managed by CoDel, rather than dropped when the client
+     * buffer is full.
+     */
+    public static final boolean ENABLED = Boolean.getBoolean("revtet.aqm");
+    private static final long TARGET = Long.getLong("revtet.aqm.target", 5) * 1_000_000;
+    private static final long INTERVAL = Long.getLong("revtet.aqm.interval", 100) * 1_000_000;
+    /**
+     * Maximum number of bytes queued per flow, the oldest packets being dropped beyond.
+     */
+    private static final int LIMIT = Integer.getInteger("revtet.aqm.flowLimit", 256 * 1024);
+
+    private static final class Entry {
+        private final IPv4Packet packet;
+        private final long enqueueTime;
+
+        private Entry(IPv4Packet packet, long enqueueTime) {
+            this.packet = packet;
+            this.enqueueTime = enqueueTime;
+        }
+    }
+
+    private final Deque<Entry> entries = new ArrayDeque<>();
+    private int bytes;
+    // largest packet seen, CoDel does not drop when less than a packet is queued
+    private int maxPacket;
+    // the head packet, once accepted by CoDel
+    private Entry head;
+
+    // CoDel state, times are System.nanoTime()
+    private long firstAboveTime;
+    private long dropNext;
+    private int count;
+    private int lastCount;
+    private boolean dropping;
+
+    private long drops;
+
+    /**
+     * @param packet The packet, which must not share its buffer with anything else.
+     * @param now    The current {@link System#nanoTime()}.
+     */
+    public void offer(IPv4Packet packet, long now) {
+        entries.add(new Entry(packet, now));
+        bytes += packet.getRawLength();
+        maxPacket = Math.max(maxPacket, packet.getRawLength());
+        while (bytes > LIMIT && entries.size() > 1) {
+            // head drop, the oldest packets are the least useful
+            Entry dropped = entries.poll();
+            drop(dropped);
+            if (dropped == head) {
+                head = null;
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Get the packet to send, dropping the packets at the head as decided by CoDel.
+     *
+     * @param now The current {@link System#nanoTime()}.
+     * @return The packet, or {@code null} if the queue is empty.
+     */
+    public IPv4Packet peek(long now) {
+        if (head == null) {
+            head = dequeue(now);
+        }
+        return head == null ? null : head.packet;
+    }
+
+    /**
+     * Remove the packet returned by {@link #peek(long)}, once sent.
+     *
+     * @return The packet removed, or {@code null} if none.
+     */
+    public IPv4Packet poll() {
+        IPv4Packet packet = null;
+        if (head != null && entries.peek() == head) {
+            packet = entries.poll().packet;
+            bytes -= packet.getRawLength();
+        }
+        head = null;
+        return packet;
+    }
+
+    /**
+     * @return The number of packets dropped.
+     */
+    public long getDrops() {
+        return drops;
+    }
+
+    private void drop(Entry entry) {
+        bytes -= entry.packet.getRawLength();
+        ++drops;
+    }
+
+    private Entry dequeue(long now) {
+        Entry entry = entries.peek();
+        boolean okToDrop = isAboveTarget(entry, now);
+        if (dropping) {
+            if (!okToDrop) {
+                dropping = false;
+            }
+            while (dropping && now - dropNext >= 0) {
+                drop(entries.poll());
+                ++count;
+                entry = entries.peek();
+                okToDrop = isAboveTarget(entry, now);
+                if (!okToDrop) {
+                    dropping = false;
+                } else {
+                    dropNext = controlLaw(dropNext, count);
+                }
+            }
+        } else if (okToDrop) {
+            drop(entries.poll());
+            entry = entries.peek();
+            isAboveTarget(entry, now);
+            dropping = true;
+            int delta = count - lastCount;
+            // resume from the previous drop rate if the last dropping state ended recently
+            count = delta > 1 && now - dropNext < 16 * INTERVAL ? delta : 1;
+            dropNext = controlLaw(now, count);
+            lastCount = count;
+        }
+        return entry;
+    }
+
+    /**
+     * @return Whether the head packet has stayed above the target for an interval.
+     */
+    private boolean isAboveTarget(Entry entry, long now) {
+        if (entry == null) {
+            firstAboveTime = 0;
+            return false;
+        }
+        long sojournTime = now - entry.enqueueTime;
+        if (sojournTime < TARGET || bytes <= maxPacket) {
+            // below the target, or less than a packet queued
+            firstAboveTime = 0;
+            return false;
+        }
+        if (firstAboveTime == 0) {
+            firstAboveTime = now + INTERVAL;
+            return false;
+        }
+        return now - firstAboveTime >= 0;
+    }
+
+    private static long controlLaw(long t, int count) {
+        return t + (long) (INTERVAL / Math.sqrt(count));
+    }
+}
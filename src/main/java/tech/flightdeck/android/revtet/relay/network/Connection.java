@@ -4,5 +4,10 @@ public interface Connection {
     ConnectionId getId();
     void sendToNetwork(IPv4Packet packet);
     void disconnect();
+
+    /**
+     * Disconnect and remove the connection from the router.
+     */
+    void close();
     boolean isExpired();
 }
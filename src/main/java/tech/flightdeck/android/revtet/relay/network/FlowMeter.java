@@ -0,0 +1,50 @@
+package tech.flightdeck.android.revtet.relay.network;
+
+/**
+ * Token bucket telling whether a flow is interactive or bulk, from the bytes it sends to the client.
+ * <p>
+ * A flow is interactive while its bucket holds tokens: it may send bursts of {@code revtet.interactive.burst} bytes
+ * (e.g. a page load) and {@code revtet.interactive.rate} bytes per second on average. Once the bucket is empty, the flow
+ * stays bulk until the bucket is full again, so that its packets do not alternate between the classes, which would
+ * reorder them.
+ * <p>
+ * Not thread-safe, it must only be used from the event loop thread.
+ */
+public class FlowMeter {
+    private static final long BURST = Long.getLong("revtet.interactive.burst", 256 * 1024);
+    private static final long RATE = Long.getLong("revtet.interactive.rate", 64 * 1024);
+
+    private long tokens = BURST;
+    private long lastRefill;
+    private boolean bulk;
+
+    /**
+     * Account for the bytes sent by the flow.
+     *
+     * @param bytes The number of bytes sent.
+     * @param now   The current time, in milliseconds.
+     * @return {@code true} if the flow is still interactive.
+     */
+    public boolean charge(int bytes, long now) {
+        refill(now);
+        tokens -= bytes;
+        if (tokens <= 0) {
+            bulk = true;
+        }
+        return !bulk;
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefill;
+        lastRefill = now;
+        if (elapsed <= 0) {
+            return;
+        }
+        // capped to the time refilling the whole bucket, so that the product cannot overflow
+        long refillTime = 1000 * BURST / Math.max(1, RATE) + 1;
+        tokens = Math.min(BURST, tokens + Math.min(elapsed, refillTime) * RATE / 1000);
+        if (tokens == BURST) {
+            bulk = false;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package tech.flightdeck.android.revtet.relay.network;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.BiPredicate;
+
+/**
+ * Scheduler of the connections waiting for space to send a packet to the client, in deficit round robin, so that
+ * concurrent flows get fair shares of the client buffer in bytes, whatever the size of their packets.
+ * <p>
+ * Each visit of a flow grants it {@link #QUANTUM} bytes of credit, and it sends its packets while its credit covers
+ * them, then waits at the back of the round with the remaining credit. A flow leaves the scheduler, and loses its
+ * credit, once it has no packet left: a connection offering a single packet at a time then waits at the back of the
+ * round for its next one.
+ * <p>
+ * Not thread-safe, it must only be used from the event loop thread.
+ */
+public class FlowScheduler {
+    /**
+     * Credit granted to a flow on each visit, in bytes.
+     */
+    private static final int QUANTUM = Math.max(1, Integer.getInteger("revtet.flowQuantum", 4096));
+
+    private static final class Flow {
+        private final PacketSource source;
+        private int deficit;
+        // whether the credit of the current visit has been granted
+        private boolean visited;
+
+        private Flow(PacketSource source) {
+            this.source = source;
+        }
+    }
+
+    private final Deque<Flow> flows = new ArrayDeque<>();
+
+    /**
+     * Add a source at the back of the round.
+     *
+     * @param source The source, not already scheduled. It stays scheduled until its {@link PacketSource#get()} returns
+     *               {@code null}.
+     */
+    public void add(PacketSource source) {
+        flows.add(new Flow(source));
+    }
+
+    public boolean isEmpty() {
+        return flows.isEmpty();
+    }
+
+    public void clear() {
+        flows.clear();
+    }
+
+    /**
+     * Send the packets of the scheduled sources in round robin order, until none is left, the sink is full or the budget
+     * is exhausted.
+     *
+     * @param sink   Sends a packet of a source to the client, returning {@code false} if there is no space for it.
+     * @param budget The maximum number of bytes to send.
+     * @return The number of bytes sent.
+     */
+    public int send(BiPredicate<PacketSource, IPv4Packet> sink, int budget) {
+        int sent = 0;
+        while (!flows.isEmpty()) {
+            Flow flow = flows.peek();
+            IPv4Packet packet = flow.source.get();
+            if (packet == null) {
+                flows.poll();
+                continue;
+            }
+            int length = packet.getRawLength();
+            if (!flow.visited) {
+                flow.visited = true;
+                flow.deficit += QUANTUM;
+            }
+            if (flow.deficit < length) {
+                // not enough credit left for this visit, next flow
+                flow.visited = false;
+                flows.add(flows.poll());
+                continue;
+            }
+            if (sent + length > budget || !sink.test(flow.source, packet)) {
+                // resume on the next round, the flow keeping its credit and its place
+                return sent;
+            }
+            sent += length;
+            flow.deficit -= length;
+            flow.source.next();
+            if (flow.source.get() == null) {
+                // nothing left, the flow leaves and loses its credit, so that the source may be added again
+                flows.poll();
+            }
+        }
+        return sent;
+    }
+}
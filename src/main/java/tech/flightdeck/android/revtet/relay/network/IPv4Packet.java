@@ -84,6 +84,18 @@ public class IPv4Packet {
         return raw.limit() - ipv4Header.getHeaderLength() - transportHeader.getHeaderLength();
     }
 
+    /**
+     * Copy the packet to a new buffer, so that it does not share its buffer anymore.
+     *
+     * @return The copy.
+     */
+    public IPv4Packet copy() {
+        ByteBuffer copy = ByteBuffer.allocate(getRawLength());
+        copy.put(getRaw());
+        copy.flip();
+        return new IPv4Packet(copy);
+    }
+
     public void computeChecksums() {
         ipv4Header.computeChecksum();
         transportHeader.computeChecksum(ipv4Header, getPayload());
@@ -1,48 +1,107 @@
 package tech.flightdeck.android.revtet.relay.network;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.ReadableByteChannel;
 
+/**
+ * Parser of the IPv4 packets received from a {@link BufferSource}.
+ * <p>
+ * Packets are parsed directly out of the received buffers. Only a packet split over several received buffers is
+ * copied, in bulk, into a staging buffer.
+ */
 public class IPv4PacketBuffer {
-    private final ByteBuffer buffer = ByteBuffer.allocate(IPv4Packet.MAX_PACKET_LENGTH);
+    private static final int LENGTH_FIELD_END = 4;
 
-    public int readFrom(ReadableByteChannel channel) throws IOException {
-        return channel.read(buffer);
+    private final BufferSource source;
+    // the received buffer being parsed, its position being the start of the next packet
+    private ByteBuffer current;
+    // the beginning of a packet split over several received buffers
+    private final ByteBuffer staging = ByteBuffer.allocate(IPv4Packet.MAX_PACKET_LENGTH);
+
+    public IPv4PacketBuffer(BufferSource source) {
+        this.source = source;
     }
 
-    @SuppressWarnings("checkstyle:MagicNumber")
-    private int getAvailablePacketLength() {
-        int length = IPv4Header.readLength(buffer);
-        assert length == -1 || IPv4Header.readVersion(buffer) == 4 : "This function must not be called when the packet is not IPv4";
-        if (length == -1) {
-            // no packet
-            return 0;
-        }
-        if (length > buffer.remaining()) {
-            // no full packet available
-            return 0;
+    private static int readLength(ByteBuffer buffer, int offset) {
+        return Short.toUnsignedInt(buffer.getShort(offset + 2));
+    }
+
+    /**
+     * Get the length of the next complete packet, without consuming it.
+     * <p>
+     * Takes as many received buffers as necessary to complete it.
+     *
+     * @return The packet length, or 0 if no full packet is available.
+     */
+    public int nextPacketLength() {
+        while (true) {
+            int required = 0;
+            if (staging.position() > 0) {
+                required = staging.position() < LENGTH_FIELD_END ? LENGTH_FIELD_END : readLength(staging, 0);
+                if (staging.position() >= required) {
+                    // complete, even if it ends exactly at the end of the last received buffer
+                    return required;
+                }
+            }
+            if (current == null || !current.hasRemaining()) {
+                if (current != null) {
+                    source.release(current);
+                }
+                current = source.take();
+                if (current == null) {
+                    return 0;
+                }
+            }
+            if (staging.position() == 0) {
+                if (current.remaining() >= LENGTH_FIELD_END) {
+                    int length = readLength(current, current.position());
+                    if (length <= current.remaining()) {
+                        // the packet is entirely in the received buffer
+                        return length;
+                    }
+                }
+                // split packet, start staging it
+                Binary.transfer(current, staging);
+                continue;
+            }
+            // copy only up to the end of the packet
+            int limit = current.limit();
+            current.limit(Math.min(limit, current.position() + required - staging.position()));
+            Binary.transfer(current, staging);
+            current.limit(limit);
         }
-        return length;
     }
 
     public IPv4Packet asIPv4Packet() {
-        buffer.flip();
-        int length = getAvailablePacketLength();
+        int length = nextPacketLength();
         if (length == 0) {
-            buffer.compact();
             return null;
         }
-        int limit = buffer.limit();
-        buffer.limit(length).position(0);
-        ByteBuffer packetBuffer = buffer.slice();
-        buffer.limit(limit).position(length);
+        ByteBuffer packetBuffer = staging.position() > 0
+                ? Binary.slice(staging, 0, length)
+                : Binary.slice(current, current.position(), length);
         // In order to avoid copies, packetBuffer is shared with this IPv4Packet instance that is returned.
         // Don't use it after another call to next()!
         return new IPv4Packet(packetBuffer);
     }
 
+    /**
+     * Give the received buffer being parsed back to the source, and drop any partial packet. Must be called before the
+     * source is disposed.
+     */
+    public void release() {
+        if (current != null) {
+            source.release(current);
+            current = null;
+        }
+        staging.clear();
+    }
+
     public void next() {
-        buffer.compact();
+        if (staging.position() > 0) {
+            staging.clear();
+        } else {
+            int length = readLength(current, current.position());
+            current.position(current.position() + length);
+        }
     }
 }
@@ -0,0 +1,23 @@
+package tech.flightdeck.android.revtet.relay.network;
+
+import java.io.IOException;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Network side of a connection, provided by the engine of its event loop.
+ * <p>
+ * Interest and readiness sets use the {@link SelectionKey} operation bits, whatever the engine. Closing the socket
+ * also stops any readiness notification.
+ */
+public interface NetworkSocket extends ByteChannel {
+    interface ReadyHandler {
+        void onReady(int readyOps);
+    }
+
+    void setInterests(int interestOps);
+
+    boolean finishConnect() throws IOException;
+
+    boolean isConnected();
+}
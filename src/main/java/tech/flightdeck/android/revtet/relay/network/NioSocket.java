@@ -0,0 +1,74 @@
+package tech.flightdeck.android.revtet.relay.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * {@link NetworkSocket} backed by a non-blocking channel registered to a {@link Selector}.
+ */
+public class NioSocket implements NetworkSocket {
+    private final SelectableChannel channel;
+    private final ByteChannel byteChannel;
+    private final SelectionKey selectionKey;
+
+    public <C extends SelectableChannel & ByteChannel> NioSocket(C channel, Selector selector, ReadyHandler readyHandler) throws IOException {
+        this.channel = channel;
+        byteChannel = channel;
+        SelectionHandler selectionHandler = selectionKey -> {
+            if (selectionKey.isValid()) {
+                readyHandler.onReady(selectionKey.readyOps());
+            }
+        };
+        selectionKey = channel.register(selector, 0, selectionHandler);
+    }
+
+    @Override
+    public void setInterests(int interestOps) {
+        if (selectionKey.isValid()) {
+            selectionKey.interestOps(interestOps);
+        }
+    }
+
+    @Override
+    public boolean finishConnect() throws IOException {
+        if (channel instanceof SocketChannel) {
+            return ((SocketChannel) channel).finishConnect();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isConnected() {
+        if (channel instanceof SocketChannel) {
+            return ((SocketChannel) channel).isConnected();
+        }
+        return ((DatagramChannel) channel).isConnected();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        return byteChannel.read(dst);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return byteChannel.write(src);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        selectionKey.cancel();
+        channel.close();
+    }
+}
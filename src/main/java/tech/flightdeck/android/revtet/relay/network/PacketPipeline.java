@@ -0,0 +1,372 @@
+package tech.flightdeck.android.revtet.relay.network;
+
+import lombok.extern.slf4j.Slf4j;
+import tech.flightdeck.android.revtet.relay.loop.Signal;
+import tech.flightdeck.android.revtet.relay.loop.SpscRingQueue;
+import tech.flightdeck.android.revtet.relay.loop.Threads;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Pipelined packet engine of a client, splitting the packet processing over three stages:
+ * <ol>
+ * <li>the parser thread reads the client stream and parses/validates IPv4 packets;</li>
+ * <li>the event loop routes them (and performs the network socket I/O, since the sockets belong to its selector);</li>
+ * <li>the egress thread computes the checksums of the packets for the client and writes them to the client, flushing
+ * the output whenever it has nothing more to write.</li>
+ * </ol>
+ * Stages are connected by bounded {@link SpscRingQueue}s, which preserve the packets order.
+ * <p>
+ * Parsed packets are not copied: they are slices of large chunks, which are handed back to the parser once the event
+ * loop has consumed all their packets.
+ */
+@Slf4j
+public class PacketPipeline {
+    private static final int CHUNK_SIZE = 4 * IPv4Packet.MAX_PACKET_LENGTH;
+    private static final int CHUNK_COUNT = 4;
+    private static final int PARSED_QUEUE_SIZE = 1024;
+    private static final int EGRESS_BUFFER_SIZE = 0x4000;
+    private static final int EGRESS_BUFFER_COUNT = 64;
+    private static final int EGRESS_QUEUE_SIZE = 2 * EGRESS_BUFFER_COUNT;
+
+    private static final class Chunk {
+        private final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        // whether at least one packet referencing this chunk has been queued
+        private boolean used;
+    }
+
+    private static final class ParsedPacket {
+        private final IPv4Packet packet;
+        private final Chunk chunk;
+
+        private ParsedPacket(IPv4Packet packet, Chunk chunk) {
+            this.packet = packet;
+            this.chunk = chunk;
+        }
+    }
+
+    private final ReadableByteChannel input;
+    private final WritableByteChannel output;
+    private final Flushable outputFlushable;
+    private final Runnable onParsed;
+    private final Runnable onEgressSpace;
+    private final Runnable onError;
+
+    // parser -> event loop
+    private final SpscRingQueue<ParsedPacket> parsedPackets = new SpscRingQueue<>(PARSED_QUEUE_SIZE);
+    // event loop -> parser
+    private final SpscRingQueue<Chunk> freeChunks = new SpscRingQueue<>(CHUNK_COUNT);
+    // chunks never referenced by a queued packet, recycled directly by the parser
+    private final Deque<Chunk> spareChunks = new ArrayDeque<>();
+    private final Signal parserSignal = new Signal();
+    private Chunk consumedChunk;
+
+    // event loop -> egress, the priority packets being written first
+    private final SpscRingQueue<ByteBuffer> priorityEgressPackets = new SpscRingQueue<>(EGRESS_QUEUE_SIZE);
+    private final SpscRingQueue<ByteBuffer> egressPackets = new SpscRingQueue<>(EGRESS_QUEUE_SIZE);
+    // egress -> event loop
+    private final SpscRingQueue<ByteBuffer> freeEgressBuffers = new SpscRingQueue<>(EGRESS_BUFFER_COUNT);
+    private final Signal egressSignal = new Signal();
+    private volatile boolean egressStarved;
+
+    private final Thread parserThread;
+    private final Thread egressThread;
+    private volatile boolean running;
+
+    /**
+     * @param id            The client id, used for naming the stage threads.
+     * @param input         The stream of packets from the client.
+     * @param output        The stream of packets to the client, flushed whenever the egress stage is idle.
+     * @param onParsed      Called from the parser thread when packets are available for routing.
+     * @param onEgressSpace Called from the egress thread when space is available again after
+     *                      {@link #offerToClient(IPv4Packet)} failed.
+     * @param onError       Called from a stage thread when the client stream is broken.
+     */
+    public <O extends WritableByteChannel & Flushable> PacketPipeline(int id, ReadableByteChannel input, O output,
+            Runnable onParsed, Runnable onEgressSpace, Runnable onError) {
+        this.input = input;
+        this.output = output;
+        outputFlushable = output;
+        this.onParsed = onParsed;
+        this.onEgressSpace = onEgressSpace;
+        this.onError = onError;
+
+        for (int i = 0; i < CHUNK_COUNT; ++i) {
+            spareChunks.add(new Chunk());
+        }
+        for (int i = 0; i < EGRESS_BUFFER_COUNT; ++i) {
+            freeEgressBuffers.offer(ByteBuffer.allocate(EGRESS_BUFFER_SIZE));
+        }
+
+        parserThread = Threads.newThread(String.format("Packet Parser %d", id), this::parse);
+        egressThread = Threads.newThread(String.format("Packet Egress %d", id), this::egress);
+    }
+
+    public void start() {
+        running = true;
+        parserThread.start();
+        egressThread.start();
+    }
+
+    public void stop() {
+        running = false;
+        parserSignal.signal();
+        egressSignal.signal();
+    }
+
+    /**
+     * Wait for the stage threads to exit after {@link #stop()}, which they do without blocking, so that they do not
+     * touch the input and the output anymore.
+     * <p>
+     * Must not be called from a stage thread.
+     */
+    public void awaitTermination() {
+        try {
+            parserThread.join();
+            egressThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Notify the parser that new data is available on the input.
+     * <p>
+     * May be called from any thread.
+     */
+    public void signalReceived() {
+        parserSignal.signal();
+    }
+
+    /**
+     * Notify the egress stage that the output may accept data again.
+     * <p>
+     * May be called from any thread.
+     */
+    public void signalWritable() {
+        egressSignal.signal();
+    }
+
+    private void parse() {
+        Chunk chunk = takeChunk();
+        int parsePosition = 0;
+        try {
+            while (running && chunk != null) {
+                ByteBuffer buffer = chunk.buffer;
+                int r = input.read(buffer);
+                if (r == -1) {
+                    break;
+                }
+                boolean parsed = false;
+                int length;
+                while ((length = getAvailablePacketLength(buffer, parsePosition)) > 0) {
+                    ByteBuffer raw = buffer.duplicate();
+                    raw.limit(parsePosition + length).position(parsePosition);
+                    parsePosition += length;
+                    IPv4Packet packet = new IPv4Packet(raw.slice());
+                    if (!packet.isValid()) {
+                        log.warn("Dropping invalid packet");
+                        continue;
+                    }
+                    if (!enqueueParsed(new ParsedPacket(packet, chunk))) {
+                        return;
+                    }
+                    chunk.used = true;
+                    parsed = true;
+                }
+                if (parsed) {
+                    onParsed.run();
+                }
+                if (buffer.remaining() < IPv4Packet.MAX_PACKET_LENGTH) {
+                    // not enough room for a full packet, move the pending bytes to a fresh chunk
+                    Chunk next = takeChunk();
+                    if (next == null) {
+                        return;
+                    }
+                    buffer.flip().position(parsePosition);
+                    next.buffer.put(buffer);
+                    if (!chunk.used) {
+                        // the event loop will never see this chunk
+                        spareChunks.add(chunk);
+                    }
+                    chunk = next;
+                    parsePosition = 0;
+                } else if (r == 0 && !parsed) {
+                    parserSignal.await();
+                }
+            }
+        } catch (IOException e) {
+            log.error("Cannot read", e);
+            onError.run();
+        }
+    }
+
+    private static int getAvailablePacketLength(ByteBuffer buffer, int position) {
+        int available = buffer.position() - position;
+        if (available < 4) {
+            return 0;
+        }
+        int length = Short.toUnsignedInt(buffer.getShort(position + 2));
+        return length <= available ? length : 0;
+    }
+
+    private boolean enqueueParsed(ParsedPacket parsedPacket) {
+        while (!parsedPackets.offer(parsedPacket)) {
+            if (!running) {
+                return false;
+            }
+            onParsed.run();
+            parserSignal.await();
+        }
+        return true;
+    }
+
+    private Chunk takeChunk() {
+        while (running) {
+            Chunk chunk = spareChunks.poll();
+            if (chunk == null) {
+                chunk = freeChunks.poll();
+            }
+            if (chunk != null) {
+                chunk.buffer.clear();
+                chunk.used = false;
+                return chunk;
+            }
+            parserSignal.await();
+        }
+        return null;
+    }
+
+    /**
+     * Must only be called from the event loop thread.
+     *
+     * @return The length of the next parsed packet, or 0 if none is available.
+     */
+    public int nextPacketLength() {
+        ParsedPacket parsedPacket = parsedPackets.peek();
+        return parsedPacket == null ? 0 : parsedPacket.packet.getRawLength();
+    }
+
+    /**
+     * Must only be called from the event loop thread.
+     * <p>
+     * The returned packet shares its chunk with the parser, it must not be used after the next call.
+     *
+     * @return The next parsed packet, or {@code null} if none is available.
+     */
+    public IPv4Packet nextPacket() {
+        ParsedPacket parsedPacket = parsedPackets.poll();
+        if (parsedPacket == null) {
+            return null;
+        }
+        if (parsedPacket.chunk != consumedChunk) {
+            // packets are consumed in order, so the previous chunk is not referenced anymore
+            if (consumedChunk != null) {
+                freeChunks.offer(consumedChunk);
+            }
+            consumedChunk = parsedPacket.chunk;
+        }
+        parserSignal.signal();
+        return parsedPacket.packet;
+    }
+
+    public boolean hasParsedPackets() {
+        return !parsedPackets.isEmpty();
+    }
+
+    /**
+     * Copy the packet to the egress stage.
+     * <p>
+     * Must only be called from the event loop thread.
+     *
+     * @param packet       The packet for the client, checksums not computed yet.
+     * @param trafficClass The class of the packet, {@link TrafficClass#PRIORITY} packets being written before the
+     *                     {@link TrafficClass#BULK} packets queued.
+     * @return {@code true} if the packet has been queued, {@code false} if the egress stage is full.
+     */
+    public boolean offerToClient(IPv4Packet packet, TrafficClass trafficClass) {
+        SpscRingQueue<ByteBuffer> queue = trafficClass == TrafficClass.PRIORITY ? priorityEgressPackets : egressPackets;
+        int length = packet.getRawLength();
+        ByteBuffer buffer = takeEgressBuffer(queue, length);
+        if (buffer == null) {
+            egressStarved = true;
+            // the egress thread may have released a buffer meanwhile
+            buffer = takeEgressBuffer(queue, length);
+            if (buffer == null) {
+                return false;
+            }
+            egressStarved = false;
+        }
+        buffer.clear();
+        buffer.put(packet.getRaw());
+        buffer.flip();
+        queue.offer(buffer);
+        egressSignal.signal();
+        return true;
+    }
+
+    public boolean isEgressStarved() {
+        return egressStarved;
+    }
+
+    private ByteBuffer takeEgressBuffer(SpscRingQueue<ByteBuffer> queue, int length) {
+        if (queue.isFull()) {
+            return null;
+        }
+        if (length > EGRESS_BUFFER_SIZE) {
+            // rare, not worth pooling
+            return ByteBuffer.allocate(length);
+        }
+        return freeEgressBuffers.poll();
+    }
+
+    private void egress() {
+        try {
+            while (running) {
+                ByteBuffer buffer = priorityEgressPackets.poll();
+                if (buffer == null) {
+                    buffer = egressPackets.poll();
+                }
+                if (buffer == null) {
+                    // nothing more to coalesce with the packets written so far
+                    outputFlushable.flush();
+                    egressSignal.await();
+                    continue;
+                }
+                IPv4Packet packet = new IPv4Packet(buffer);
+                packet.computeChecksums();
+                ByteBuffer raw = packet.getRaw();
+                while (raw.hasRemaining()) {
+                    int w = output.write(raw);
+                    if (w == -1) {
+                        // the transport is closed
+                        onError.run();
+                        return;
+                    }
+                    if (w == 0) {
+                        egressSignal.await();
+                        if (!running) {
+                            return;
+                        }
+                    }
+                }
+                if (buffer.capacity() == EGRESS_BUFFER_SIZE) {
+                    freeEgressBuffers.offer(buffer);
+                }
+                if (egressStarved) {
+                    egressStarved = false;
+                    onEgressSpace.run();
+                }
+            }
+        } catch (IOException e) {
+            log.error("Cannot write", e);
+            onError.run();
+        }
+    }
+}
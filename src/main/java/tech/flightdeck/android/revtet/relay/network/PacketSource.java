@@ -4,4 +4,12 @@ public interface PacketSource {
     IPv4Packet get();
 
     void next();
+
+    /**
+     * @return Where the packets of this source are queued for the client, or {@code null} if they need not be kept
+     * in order.
+     */
+    default QueuedFlow getQueuedFlow() {
+        return null;
+    }
 }
@@ -40,9 +40,9 @@ public class Packetizer {
         return inflate();
     }
 
-    public IPv4Packet packetize(ByteBuffer src, int offset, int len) throws IOException {
+    public IPv4Packet packetize(ByteBuffer src, int offset, int len) {
         payloadBuffer.limit(len).position(0);
-        payloadBuffer.put(src.array(), src.arrayOffset() + offset, len);
+        payloadBuffer.put(Binary.slice(src, offset, len));
         payloadBuffer.flip();
         return inflate();
     }
@@ -64,8 +64,7 @@ public class Packetizer {
 
         // In order to avoid copies, buffer is shared with this IPv4Packet instance that is returned.
         // Don't use it after another call to packetize()!
-        IPv4Packet packet = new IPv4Packet(buffer);
-        packet.computeChecksums();
-        return packet;
+        // Checksums are computed once the packet is sent to the client.
+        return new IPv4Packet(buffer);
     }
 }
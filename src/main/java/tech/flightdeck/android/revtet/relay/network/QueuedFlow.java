@@ -0,0 +1,31 @@
+package tech.flightdeck.android.revtet.relay.network;
+
+/**
+ * Buffer holding the packets of a flow queued for the client and not written yet, so that its next packets are queued
+ * behind them in the same buffer, even if the flow changed class meanwhile: packets of a flow are never reordered.
+ * <p>
+ * Not thread-safe, it must only be used from the event loop thread.
+ */
+public final class QueuedFlow {
+    private StreamBuffer buffer;
+    // position, in the bytes ever read into the buffer, of the end of the last packet queued
+    private long end;
+
+    /**
+     * @return The buffer still holding packets of the flow, or {@code null} if they have all been written.
+     */
+    public StreamBuffer getPendingBuffer() {
+        if (buffer != null && buffer.getTotalWritten() >= end) {
+            buffer = null;
+        }
+        return buffer;
+    }
+
+    /**
+     * Record that a packet of the flow has just been read into a buffer.
+     */
+    public void queued(StreamBuffer buffer) {
+        this.buffer = buffer;
+        end = buffer.getTotalRead();
+    }
+}
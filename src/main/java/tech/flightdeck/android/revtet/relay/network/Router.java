@@ -2,22 +2,24 @@ package tech.flightdeck.android.revtet.relay.network;
 
 import lombok.extern.slf4j.Slf4j;
 import tech.flightdeck.android.revtet.relay.entity.Client;
+import tech.flightdeck.android.revtet.relay.loop.EventLoop;
 
 import java.io.IOException;
-import java.nio.channels.Selector;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 @Slf4j
 public class Router {
     private final Client client;
-    private final Selector selector;
+    private final EventLoop eventLoop;
 
-    private final List<Connection> connections = new ArrayList<>();
+    private final Map<ConnectionId, Connection> connections = new HashMap<>();
 
-    public Router(Client client, Selector selector) {
+    public Router(Client client, EventLoop eventLoop) {
         this.client = client;
-        this.selector = selector;
+        this.eventLoop = eventLoop;
     }
 
     public void sendToNetwork(IPv4Packet packet) {
@@ -35,51 +37,67 @@ public class Router {
 
     private Connection getConnection(IPv4Header iPv4Header, TransportHeader transportHeader) throws IOException {
         ConnectionId id = ConnectionId.from(iPv4Header, transportHeader);
-        Connection connection = find(id);
+        Connection connection = connections.get(id);
         if (connection == null) {
             connection = createConnection(id, iPv4Header, transportHeader);
-            connections.add(connection);
+            connections.put(id, connection);
         }
         return connection;
     }
 
-    private Connection find(ConnectionId id) {
-        for (Connection connection : connections) {
-            if (id.equals(connection.getId())) {
-                return connection;
-            }
-        }
-        return null;
-    }
-
     private Connection createConnection(ConnectionId id, IPv4Header iPv4Header, TransportHeader transportHeader) throws IOException {
         IPv4Header.Protocol protocol = id.getProtocol();
         if (protocol == IPv4Header.Protocol.UDP) {
-            return new UDPConnection(id, client, selector, iPv4Header, (UDPHeader) transportHeader);
+            return new UDPConnection(id, client, eventLoop, iPv4Header, (UDPHeader) transportHeader);
         }
         if (protocol == IPv4Header.Protocol.TCP) {
-            return new TCPConnection(id, client, selector, iPv4Header, (TCPHeader) transportHeader);
+            return new TCPConnection(id, client, eventLoop, iPv4Header, (TCPHeader) transportHeader);
         }
         if (protocol == IPv4Header.Protocol.ICMP) {
-            return new ICMPConnection(id, client, iPv4Header, (ICMPHeader) transportHeader);
+            return new ICMPConnection(id, client, eventLoop, iPv4Header, (ICMPHeader) transportHeader);
         }
         throw new UnsupportedOperationException("Unsupported protocol: " + protocol);
     }
 
-    public void remove(Connection connection) {
-        if (!connections.remove(connection)) {
-            throw new AssertionError("Removed a connection unknown from the router");
+    /**
+     * Close all the connections.
+     *
+     * @return The number of connections closed.
+     */
+    public int closeAll() {
+        // closing a connection removes it from the map
+        List<Connection> all = new ArrayList<>(connections.values());
+        for (Connection connection : all) {
+            connection.close();
         }
+        return all.size();
     }
 
-    public void cleanExpiredConnections() {
-        for (int i = connections.size() - 1; i >= 0; --i) {
-            Connection connection = connections.get(i);
-            if (connection.isExpired()) {
-                log.info("Remove expired connection: {}", connection.getId());
-                connection.disconnect();
-                connections.remove(i);
+    /**
+     * Reset the TCP connections whose data sent to the client is not acknowledged yet.
+     * <p>
+     * The relay does not retransmit to the client, so once data in flight may have been lost, e.g. with the transfers
+     * of a detached transport, the stream cannot recover.
+     *
+     * @return The number of connections reset.
+     */
+    public int resetUnacknowledged() {
+        // resetting a connection removes it from the map
+        List<TCPConnection> unacknowledged = new ArrayList<>();
+        for (Connection connection : connections.values()) {
+            if (connection instanceof TCPConnection && ((TCPConnection) connection).hasUnacknowledgedData()) {
+                unacknowledged.add((TCPConnection) connection);
             }
         }
+        for (TCPConnection connection : unacknowledged) {
+            connection.reset();
+        }
+        return unacknowledged.size();
+    }
+
+    public void remove(Connection connection) {
+        if (connections.remove(connection.getId()) != connection) {
+            throw new AssertionError("Removed a connection unknown from the router");
+        }
     }
 }
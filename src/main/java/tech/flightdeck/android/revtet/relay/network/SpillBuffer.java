@@ -0,0 +1,173 @@
+package tech.flightdeck.android.revtet.relay.network;
+
+import lombok.extern.slf4j.Slf4j;
+import tech.flightdeck.android.revtet.relay.loop.ResourceCounters;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Circular buffer over a memory-mapped segment file, holding the data read from the network ahead of a slow client, so
+ * that the server does not see a stalled receiver.
+ * <p>
+ * The file is deleted as soon as it is mapped, so nothing is left on disk if the relay dies, and it is unmapped when the
+ * buffer is closed. At most {@code revtet.tcp.spillSegments} segments are mapped at a time, over all the connections.
+ * <p>
+ * Not thread-safe, it must only be used from the event loop thread.
+ */
+@Slf4j
+public class SpillBuffer {
+    /**
+     * Size of a segment, in bytes.
+     */
+    private static final int SIZE = Integer.getInteger("revtet.tcp.spillSize", 16 * 1024 * 1024);
+    private static final String DIRECTORY = System.getProperty("revtet.tcp.spillDir",
+            System.getProperty("java.io.tmpdir"));
+    /**
+     * Maximum number of segments mapped at a time, bounding the disk space and the address space used by all the
+     * connections.
+     */
+    private static final int MAX_SEGMENTS = Integer.getInteger("revtet.tcp.spillSegments", 64);
+
+    private static final Semaphore SEGMENTS = new Semaphore(MAX_SEGMENTS);
+
+    private MappedByteBuffer buffer;
+    private final int capacity;
+    private int head;
+    private int tail;
+    private int size;
+
+    private SpillBuffer(MappedByteBuffer buffer, int capacity) {
+        this.buffer = buffer;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Create and map a new segment file in {@code revtet.tcp.spillDir}.
+     *
+     * @return The buffer, or {@code null} if {@code revtet.tcp.spillSegments} segments are already mapped.
+     */
+    public static SpillBuffer create() throws IOException {
+        return create(SIZE);
+    }
+
+    static SpillBuffer create(int capacity) throws IOException {
+        if (!SEGMENTS.tryAcquire()) {
+            return null;
+        }
+        try {
+            Path path = Files.createTempFile(Paths.get(DIRECTORY), "revtet-spill-", ".seg");
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE)) {
+                MappedByteBuffer buffer = file.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+                ResourceCounters.SPILL_SEGMENTS.acquired();
+                return new SpillBuffer(buffer, capacity);
+            }
+        } catch (IOException | RuntimeException e) {
+            SEGMENTS.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return Whether a segment may be created.
+     */
+    public static boolean isAvailable() {
+        return SEGMENTS.availablePermits() > 0;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Read from the channel into the free space, at most up to the end of the segment.
+     *
+     * @return The number of bytes read, or -1 on end of stream.
+     */
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        int length = Math.min(capacity - size, capacity - head);
+        if (length == 0) {
+            return 0;
+        }
+        buffer.limit(head + length).position(head);
+        int r = channel.read(buffer);
+        if (r > 0) {
+            head = (head + r) % capacity;
+            size += r;
+        }
+        return r;
+    }
+
+    /**
+     * Consume the first bytes as the payload of a packet.
+     *
+     * @param packetizer The packetizer of the connection.
+     * @param maxChunkSize The maximum payload length, the payload being shorter at the end of the segment.
+     * @return The packet, sharing the packetizer buffer.
+     */
+    public IPv4Packet packetize(Packetizer packetizer, int maxChunkSize) {
+        int length = Math.min(maxChunkSize, Math.min(size, capacity - tail));
+        buffer.limit(capacity);
+        IPv4Packet packet = packetizer.packetize(buffer, tail, length);
+        tail = (tail + length) % capacity;
+        size -= length;
+        return packet;
+    }
+
+    /**
+     * Unmap the segment, the buffer must not be used anymore.
+     */
+    public void close() {
+        if (buffer != null) {
+            // if it cannot be unmapped, it stays counted as live: the mapping is then only released on garbage collection
+            if (unmap(buffer)) {
+                ResourceCounters.SPILL_SEGMENTS.released();
+            }
+            buffer = null;
+            SEGMENTS.release();
+        }
+    }
+
+    private static boolean unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                // Java 8
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+                return true;
+            }
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return true;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.warn("Cannot unmap a spill segment, it stays mapped until garbage collected", e);
+            return false;
+        }
+    }
+}
@@ -9,6 +9,9 @@ public class StreamBuffer {
     private final ByteBuffer wrapper;
     private int head;
     private int tail;
+    // bytes ever read into the buffer, and written (or skipped) from it, to locate data across wrap-arounds
+    private long totalRead;
+    private long totalWritten;
 
     public StreamBuffer(int capacity) {
         data = new byte[capacity + 1];
@@ -39,17 +42,28 @@ public class StreamBuffer {
     }
 
     public int writeTo(WritableByteChannel channel) throws IOException {
+        return writeTo(channel, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Write at most {@code max} bytes to the channel.
+     *
+     * @return The number of bytes written.
+     */
+    public int writeTo(WritableByteChannel channel, int max) throws IOException {
         if (head > tail) {
-            wrapper.limit(head).position(tail);
+            wrapper.limit(Math.min(head, tail + max)).position(tail);
             int w = channel.write(wrapper);
+            totalWritten += wrapper.position() - tail;
             tail = wrapper.position();
             optimize();
             return w;
         }
 
         if (head < tail) {
-            wrapper.limit(data.length).position(tail);
+            wrapper.limit((int) Math.min(data.length, (long) tail + max)).position(tail);
             int w = channel.write(wrapper);
+            totalWritten += wrapper.position() - tail;
             tail = wrapper.position() % data.length;
             optimize();
             return w;
@@ -59,6 +73,27 @@ public class StreamBuffer {
         return 0;
     }
 
+    /**
+     * Read an unsigned short, without consuming it.
+     *
+     * @param offset The offset from the first byte available, which must be less than {@code size() - 1}.
+     */
+    public int peekUnsignedShort(int offset) {
+        int index = (tail + offset) % data.length;
+        return ((data[index] & 0xff) << 8) | (data[(index + 1) % data.length] & 0xff);
+    }
+
+    /**
+     * Discard bytes, without writing them.
+     *
+     * @param length The number of bytes, at most {@code size()}.
+     */
+    public void skip(int length) {
+        totalWritten += length;
+        tail = (tail + length) % data.length;
+        optimize();
+    }
+
     public void readFrom(ByteBuffer buffer) {
         int requested = Math.min(buffer.remaining(), remaining());
         if (requested <= data.length - head) {
@@ -68,6 +103,21 @@ public class StreamBuffer {
             buffer.get(data, 0, head + requested - data.length);
         }
         head = (head + requested) % data.length;
+        totalRead += requested;
+    }
+
+    /**
+     * @return The number of bytes ever read into the buffer.
+     */
+    public long getTotalRead() {
+        return totalRead;
+    }
+
+    /**
+     * @return The number of bytes ever written, or skipped, from the buffer.
+     */
+    public long getTotalWritten() {
+        return totalWritten;
     }
 
     /**
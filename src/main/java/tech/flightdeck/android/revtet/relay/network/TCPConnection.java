@@ -1,13 +1,11 @@
 package tech.flightdeck.android.revtet.relay.network;
 
 import lombok.extern.slf4j.Slf4j;
-import tech.flightdeck.android.revtet.relay.entity.Accessory;
 import tech.flightdeck.android.revtet.relay.entity.Client;
+import tech.flightdeck.android.revtet.relay.loop.EventLoop;
 
 import java.io.IOException;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.SocketChannel;
 import java.util.Random;
 
 @Slf4j
@@ -15,6 +13,11 @@ public class TCPConnection extends AbstractConnection implements PacketSource {
     public static final int IDLE_TIMEOUT = 30000;
     private static final int MTU = 0x4000;
     private static final int MAX_PAYLOAD_SIZE = MTU - 20 - 20;
+    /**
+     * Whether to keep reading from the network into a {@link SpillBuffer} while the client is not ready, so that large
+     * downloads complete at network speed rather than at the pace of the phone.
+     */
+    private static final boolean SPILL = Boolean.getBoolean("revtet.tcp.spill");
 
     private static final Random RANDOM = new Random();
 
@@ -40,9 +43,13 @@ public class TCPConnection extends AbstractConnection implements PacketSource {
     private final StreamBuffer clientToNetwork = new StreamBuffer(4 * IPv4Packet.MAX_PACKET_LENGTH);
     private final Packetizer networkToClient;
     private IPv4Packet packetForClient;
+    // data read ahead of the client, created on first use
+    private SpillBuffer spill;
+    private boolean spillFailed;
+    // end of stream read into the spill buffer, the FIN is sent once it is drained
+    private boolean spilledEof;
 
-    private final SocketChannel channel;
-    private final SelectionKey selectionKey;
+    private NetworkSocket channel;
     private int interests;
 
     private State state;
@@ -54,10 +61,8 @@ public class TCPConnection extends AbstractConnection implements PacketSource {
     private boolean finReceived;
     private int clientWindow;
 
-    private long idleSince;
-
-    public TCPConnection(ConnectionId id, Client client, Selector selector, IPv4Header iPv4Header, TCPHeader tcpHeader) throws IOException {
-        super(id, client);
+    public TCPConnection(ConnectionId id, Client client, EventLoop eventLoop, IPv4Header iPv4Header, TCPHeader tcpHeader) throws IOException {
+        super(id, client, eventLoop, IDLE_TIMEOUT);
 
         TCPHeader shrinkedTcpHeader = tcpHeader.copy();
         shrinkedTcpHeader.shrinkOptions();
@@ -66,51 +71,52 @@ public class TCPConnection extends AbstractConnection implements PacketSource {
         networkToClient.getResponseIPv4Header().swapSourceAndDestination();
         networkToClient.getResponseTransportHeader().swapSourceAndDestination();
 
-        touch();
-
-        SelectionHandler selectionHandler = selectionKey -> {
+        NetworkSocket.ReadyHandler readyHandler = readyOps -> {
             touch();
-            if (selectionKey.isValid() && selectionKey.isConnectable()) {
+            if (channel.isOpen() && (readyOps & SelectionKey.OP_CONNECT) != 0) {
                 processConnect();
             }
-            if (selectionKey.isValid() && selectionKey.isReadable()) {
+            if (channel.isOpen() && (readyOps & SelectionKey.OP_READ) != 0) {
                 processReceive();
             }
-            if (selectionKey.isValid() && selectionKey.isWritable()) {
+            if (channel.isOpen() && (readyOps & SelectionKey.OP_WRITE) != 0) {
                 processSend();
             }
             updateInterests();
         };
-        channel = createChannel();
+        channel = createChannel(eventLoop, readyHandler);
         interests = SelectionKey.OP_CONNECT;
-        selectionKey = channel.register(selector, interests, selectionHandler);
-    }
+        channel.setInterests(interests);
 
-    private void touch() {
-        this.idleSince = System.currentTimeMillis();
+        scheduleExpiry();
     }
 
-    private SocketChannel createChannel() throws IOException {
+    private NetworkSocket createChannel(EventLoop eventLoop, NetworkSocket.ReadyHandler readyHandler) throws IOException {
         log.debug("Open");
-        SocketChannel socketChannel = SocketChannel.open();
-        socketChannel.configureBlocking(false);
-        socketChannel.connect(getRewrittenDestination());
-        return socketChannel;
+        return eventLoop.openStream(getRewrittenDestination(), readyHandler);
     }
 
     @Override
     public void disconnect() {
         log.debug("Close");
         log.info("Closing TCP connection with state {}", state);
-        selectionKey.cancel();
         try {
             channel.close();
         } catch (IOException e) {
             log.error("Cannot close connection channel", e);
         }
+        if (spill != null) {
+            spill.close();
+            spill = null;
+        }
     }
 
     private void processReceive() {
+        if (SPILL && !spillFailed && (packetForClient != null || getRemainingClientWindow() == 0
+                || spill != null && !spill.isEmpty())) {
+            processSpill();
+            return;
+        }
         try {
             assert packetForClient == null : "The IPv4Packet shares the networkToClient buffer, it must not be corrupted";
             int remainingClientWindow = getRemainingClientWindow();
@@ -120,7 +126,6 @@ public class TCPConnection extends AbstractConnection implements PacketSource {
             packetForClient = networkToClient.packetize(channel, maxPayloadSize);
             if (packetForClient == null) {
                 eof();
-                return;
             }
             consume(this);
         } catch (IOException e) {
@@ -129,6 +134,89 @@ public class TCPConnection extends AbstractConnection implements PacketSource {
         }
     }
 
+    private void processSpill() {
+        if (spill == null) {
+            try {
+                spill = SpillBuffer.create();
+            } catch (IOException e) {
+                log.warn("Cannot create a spill segment, reading at the pace of the client", e);
+                spillFailed = true;
+                return;
+            }
+            if (spill == null) {
+                // all the segments are in use, read at the pace of the client until one is released (see mayRead())
+                return;
+            }
+        }
+        try {
+            if (spill.readFrom(channel) == -1) {
+                spilledEof = true;
+            }
+        } catch (IOException e) {
+            log.error("Cannot read", e);
+            resetConnection();
+            return;
+        }
+        resumeFromSpill();
+    }
+
+    /**
+     * Offer the next spilled packet to the client, if it is not already waiting for one.
+     */
+    private void resumeFromSpill() {
+        if (packetForClient != null) {
+            return;
+        }
+        if (takeFromSpill() || eofIfSpillDrained()) {
+            consume(this);
+        }
+    }
+
+    private boolean takeFromSpill() {
+        if (spill == null || spill.isEmpty()) {
+            return false;
+        }
+        int maxPayloadSize = getSpillChunkSize(getRemainingClientWindow(), clientWindow, spill.size());
+        if (maxPayloadSize == 0) {
+            return false;
+        }
+        updateHeaders(TCPHeader.FLAG_ACK | TCPHeader.FLAG_PSH);
+        packetForClient = spill.packetize(networkToClient, maxPayloadSize);
+        return true;
+    }
+
+    /**
+     * @param remainingClientWindow The number of bytes the client may still receive.
+     * @param clientWindow          The window advertised by the client.
+     * @param spilled               The number of bytes in the spill buffer, not 0.
+     * @return The maximum payload length of the next packet taken from the spill buffer, or 0 if the data must wait for
+     * the client window to open.
+     */
+    static int getSpillChunkSize(int remainingClientWindow, int clientWindow, int spilled) {
+        int maxPayloadSize = Math.min(remainingClientWindow, MAX_PAYLOAD_SIZE);
+        if (maxPayloadSize == 0) {
+            // the client window is closed, an empty packet would be offered again and again
+            return 0;
+        }
+        if (maxPayloadSize < MAX_PAYLOAD_SIZE && maxPayloadSize < spilled && remainingClientWindow < clientWindow / 2) {
+            // avoid the silly window syndrome (RFC 1122 4.2.3.4), the data is sent once the window has opened enough
+            return 0;
+        }
+        return maxPayloadSize;
+    }
+
+    /**
+     * @return Whether the FIN has been offered to the client.
+     */
+    private boolean eofIfSpillDrained() {
+        if (spilledEof && packetForClient == null && spill.isEmpty()) {
+            spilledEof = false;
+            eof();
+            return true;
+        }
+        return false;
+    }
+
     private void processSend() {
         try {
             int w = clientToNetwork.writeTo(channel);
@@ -156,6 +244,10 @@ public class TCPConnection extends AbstractConnection implements PacketSource {
     @Override
     public void sendToNetwork(IPv4Packet packet) {
         handlePacket(packet);
+        if (spill != null && channel.isOpen()) {
+            // the client window may have opened
+            resumeFromSpill();
+        }
         log.debug("current ack={}", acknowledgementNumber);
         updateInterests();
     }
@@ -332,8 +424,15 @@ public class TCPConnection extends AbstractConnection implements PacketSource {
         }
     }
 
+    /**
+     * Offer the FIN to the client as the next packet, the caller being responsible for consuming it.
+     * <p>
+     * Like data, it waits for space in the client buffer rather than being dropped, which would leave the connection
+     * half-open. It is copied, so that the empty packets (e.g. ACKs) sent meanwhile do not overwrite it.
+     */
     private void eof() {
-        sendEmptyPacketToClient(TCPHeader.FLAG_FIN | TCPHeader.FLAG_ACK);
+        assert packetForClient == null : "The FIN must follow the data sent to the client";
+        packetForClient = createEmptyResponsePacket(TCPHeader.FLAG_FIN | TCPHeader.FLAG_ACK).copy();
 
         finSequenceNumber = sequenceNumber;
         ++sequenceNumber;
@@ -345,6 +444,24 @@ public class TCPConnection extends AbstractConnection implements PacketSource {
         log.debug("State = {}", state);
     }
 
+    /**
+     * @return Whether segments (or the SYN-ACK) sent to the client are not acknowledged yet.
+     */
+    public boolean hasUnacknowledgedData() {
+        if (state == null || state == State.SYN_SENT) {
+            // nothing sent to the client yet
+            return false;
+        }
+        return sequenceNumber != theirAcknowledgementNumber;
+    }
+
+    /**
+     * Reset the connection on both sides.
+     */
+    public void reset() {
+        resetConnection();
+    }
+
     private void resetConnection() {
         log.debug("Resetting connection");
         state = null;
@@ -374,7 +491,7 @@ public class TCPConnection extends AbstractConnection implements PacketSource {
     }
 
     protected void updateInterests() {
-        if (!selectionKey.isValid()) {
+        if (!channel.isOpen()) {
             return;
         }
         int interestOps = 0;
@@ -389,7 +506,7 @@ public class TCPConnection extends AbstractConnection implements PacketSource {
         }
         if (interests != interestOps) {
             interests = interestOps;
-            selectionKey.interestOps(interestOps);
+            channel.setInterests(interestOps);
         }
     }
 
@@ -397,6 +514,10 @@ public class TCPConnection extends AbstractConnection implements PacketSource {
         if (!state.isConnected() || state.isClosed()) {
             return false;
         }
+        if (SPILL && !spillFailed && (spill != null || SpillBuffer.isAvailable())) {
+            // read ahead of the client while the spill buffer has space
+            return !spilledEof && (spill == null || !spill.isFull());
+        }
         if (packetForClient != null) {
             return false;
         }
@@ -413,6 +534,10 @@ public class TCPConnection extends AbstractConnection implements PacketSource {
 
     @Override
     public IPv4Packet get() {
+        if (packetForClient == null) {
+            // sent, the next one is offered once received from the network
+            return null;
+        }
         updateAcknowledgementNumber(packetForClient);
         return packetForClient;
     }
@@ -420,7 +545,6 @@ public class TCPConnection extends AbstractConnection implements PacketSource {
     private void updateAcknowledgementNumber(IPv4Packet packet) {
         TCPHeader tcpHeader = (TCPHeader)packet.getTransportHeader();
         tcpHeader.setAcknowledgementNumber(acknowledgementNumber);
-        packet.computeChecksums();
     }
 
     @Override
@@ -428,6 +552,15 @@ public class TCPConnection extends AbstractConnection implements PacketSource {
         log.debug("Packet ({} bytes) sent to client {}", packetForClient.getPayloadLength(), numbers());
         sequenceNumber += packetForClient.getPayloadLength();
         packetForClient = null;
+        // the caller keeps sending while get() returns a packet
+        if (!takeFromSpill() && spill != null) {
+            eofIfSpillDrained();
+        }
+        if (spill != null && spill.isEmpty() && !spilledEof) {
+            // drained, the segment goes back to the other connections
+            spill.close();
+            spill = null;
+        }
         updateInterests();
     }
 
@@ -441,7 +574,7 @@ public class TCPConnection extends AbstractConnection implements PacketSource {
 
     @Override
     public boolean isExpired() {
-        return System.currentTimeMillis() >= idleSince + IDLE_TIMEOUT && !available();
+        return isIdle() && !available();
     }
 
     private boolean available() {
@@ -0,0 +1,14 @@
+package tech.flightdeck.android.revtet.relay.network;
+
+/**
+ * Class of a packet sent to the client, {@link #PRIORITY} packets being written before any {@link #BULK} one not
+ * written yet.
+ */
+public enum TrafficClass {
+    /**
+     * Control and latency-sensitive packets: TCP handshakes, resets and pure ACKs, DNS answers, ICMP, and the packets of
+     * flows within their interactive budget (see {@link FlowMeter}).
+     */
+    PRIORITY,
+    BULK
+}
@@ -0,0 +1,47 @@
+package tech.flightdeck.android.revtet.relay.network;
+
+/**
+ * Classifier of the packets sent to the client, from their protocol, port and TCP flags, and the byte rate of their
+ * flow.
+ */
+public final class TrafficClassifier {
+    private static final int DNS_PORT = 53;
+
+    private TrafficClassifier() {
+        // not instantiable
+    }
+
+    /**
+     * @param packet The packet for the client.
+     * @param meter  The meter of the flow of the packet, or {@code null} if unknown.
+     * @param now    The current time, in milliseconds.
+     * @return The class of the packet.
+     */
+    public static TrafficClass classify(IPv4Packet packet, FlowMeter meter, long now) {
+        if (isControl(packet)) {
+            return TrafficClass.PRIORITY;
+        }
+        if (meter == null) {
+            return TrafficClass.BULK;
+        }
+        return meter.charge(packet.getPayloadLength(), now) ? TrafficClass.PRIORITY : TrafficClass.BULK;
+    }
+
+    private static boolean isControl(IPv4Packet packet) {
+        switch (packet.getIpv4Header().getProtocol()) {
+            case ICMP:
+                return true;
+            case UDP:
+                return ((UDPHeader) packet.getTransportHeader()).getSourcePort() == DNS_PORT;
+            case TCP:
+                TCPHeader tcpHeader = (TCPHeader) packet.getTransportHeader();
+                if (tcpHeader.isSyn() || tcpHeader.isRst()) {
+                    return true;
+                }
+                // a FIN must not overtake the data of its flow
+                return !tcpHeader.isFin() && packet.getPayloadLength() == 0;
+            default:
+                return false;
+        }
+    }
+}
@@ -2,59 +2,51 @@ package tech.flightdeck.android.revtet.relay.network;
 
 import lombok.extern.slf4j.Slf4j;
 import tech.flightdeck.android.revtet.relay.entity.Client;
+import tech.flightdeck.android.revtet.relay.loop.EventLoop;
 
 import java.io.IOException;
-import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 
 @Slf4j
-public class UDPConnection extends AbstractConnection {
+public class UDPConnection extends AbstractConnection implements PacketSource {
     public static final long IDLE_TIMEOUT = 2 * 60 * 1000;
 
     private final DatagramBuffer clientToNetwork = new DatagramBuffer(4 * IPv4Packet.MAX_PACKET_LENGTH);
     private final Packetizer networkToClient;
+    // packets waiting for space in the client buffer, if CoDelQueue.ENABLED
+    private final CoDelQueue queueToClient = CoDelQueue.ENABLED ? new CoDelQueue() : null;
+    private boolean scheduled;
 
-    private final DatagramChannel channel;
-    private final SelectionKey selectionKey;
+    private NetworkSocket channel;
     private int interests;
 
-    private long idleSince;
-
-    protected UDPConnection(ConnectionId id, Client client, Selector selector, IPv4Header iPv4Header, UDPHeader udpHeader) throws IOException {
-        super(id, client);
+    protected UDPConnection(ConnectionId id, Client client, EventLoop eventLoop, IPv4Header iPv4Header, UDPHeader udpHeader) throws IOException {
+        super(id, client, eventLoop, IDLE_TIMEOUT);
 
         networkToClient = new Packetizer(iPv4Header, udpHeader);
         networkToClient.getResponseIPv4Header().swapSourceAndDestination();
         networkToClient.getResponseTransportHeader().swapSourceAndDestination();
 
-        touch();
-
-        SelectionHandler selectionHandler = selectionKey -> {
+        NetworkSocket.ReadyHandler readyHandler = readyOps -> {
             touch();
-            if (selectionKey.isValid() && selectionKey.isReadable()) {
+            if (channel.isOpen() && (readyOps & SelectionKey.OP_READ) != 0) {
                 processReceive();
             }
-            if (selectionKey.isValid() && selectionKey.isWritable()) {
+            if (channel.isOpen() && (readyOps & SelectionKey.OP_WRITE) != 0) {
                 processSend();
             }
             updateInterests();
         };
-        channel = createChannel();
+        channel = createChannel(eventLoop, readyHandler);
         interests = SelectionKey.OP_READ;
-        selectionKey = channel.register(selector, interests, selectionHandler);
-    }
+        channel.setInterests(interests);
 
-    private void touch() {
-        idleSince = System.currentTimeMillis();
+        scheduleExpiry();
     }
 
-    private DatagramChannel createChannel() throws IOException {
+    private NetworkSocket createChannel(EventLoop eventLoop, NetworkSocket.ReadyHandler readyHandler) throws IOException {
         log.debug("Open");
-        DatagramChannel datagramChannel = DatagramChannel.open();
-        datagramChannel.configureBlocking(false);
-        datagramChannel.connect(getRewrittenDestination());
-        return datagramChannel;
+        return eventLoop.openDatagram(getRewrittenDestination(), readyHandler);
     }
 
     private void processReceive() {
@@ -91,6 +83,10 @@ public class UDPConnection extends AbstractConnection {
     }
 
     private void pushToClient(IPv4Packet packet) {
+        if (queueToClient != null) {
+            enqueueToClient(packet);
+            return;
+        }
         if (!sendToClient(packet)) {
             log.warn("Cannot send to client, dropping packet");
             return;
@@ -98,8 +94,35 @@ public class UDPConnection extends AbstractConnection {
         log.debug("Packet ({} bytes) sent to client", packet.getPayloadLength());
     }
 
+    private void enqueueToClient(IPv4Packet packet) {
+        // the packet shares the networkToClient buffer
+        queueToClient.offer(packet.copy(), System.nanoTime());
+        // charged to the flow meter for every packet, but the queued ones are scheduled in the class of the first one
+        TrafficClass trafficClass = classify(packet);
+        if (!scheduled) {
+            scheduled = true;
+            consume(this, trafficClass);
+        }
+    }
+
+    @Override
+    public IPv4Packet get() {
+        IPv4Packet packet = queueToClient.peek(System.nanoTime());
+        if (packet == null) {
+            // the scheduler or the client drops this source
+            scheduled = false;
+        }
+        return packet;
+    }
+
+    @Override
+    public void next() {
+        IPv4Packet packet = queueToClient.poll();
+        log.debug("Packet ({} bytes) sent to client", packet.getPayloadLength());
+    }
+
     private void updateInterests() {
-        if (!selectionKey.isValid()) {
+        if (!channel.isOpen()) {
             return;
         }
         int interestOps = SelectionKey.OP_READ;
@@ -108,7 +131,7 @@ public class UDPConnection extends AbstractConnection {
         }
         if (interests != interestOps) {
             interests = interestOps;
-            selectionKey.interestOps(interestOps);
+            channel.setInterests(interestOps);
         }
     }
 
@@ -128,7 +151,9 @@ public class UDPConnection extends AbstractConnection {
     @Override
     public void disconnect() {
         log.debug("Close");
-        selectionKey.cancel();
+        if (queueToClient != null && queueToClient.getDrops() > 0) {
+            log.debug("{} packets dropped by CoDel", queueToClient.getDrops());
+        }
         try {
             channel.close();
         } catch (IOException e) {
@@ -138,6 +163,6 @@ public class UDPConnection extends AbstractConnection {
 
     @Override
     public boolean isExpired() {
-        return System.currentTimeMillis() >= idleSince + IDLE_TIMEOUT;
+        return isIdle();
     }
 }
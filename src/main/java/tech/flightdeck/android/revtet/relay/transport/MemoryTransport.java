@@ -0,0 +1,205 @@
+package tech.flightdeck.android.revtet.relay.transport;
+
+import tech.flightdeck.android.revtet.relay.loop.EventLoop;
+import tech.flightdeck.android.revtet.relay.loop.SpscRingQueue;
+import tech.flightdeck.android.revtet.relay.network.Binary;
+
+import java.nio.ByteBuffer;
+
+/**
+ * In-memory transport, the phone side being played by a {@link Peer}, e.g. to benchmark and profile the packet engine
+ * without any hardware.
+ * <p>
+ * The buffers sent by the peer are parsed in place, without copy. The data written to the peer is copied once into
+ * buffers handed over to it, like the write transfers of the USB accessory.
+ */
+public class MemoryTransport extends Transport {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int BUFFER_COUNT = 16;
+
+    private final Peer peer = new Peer();
+    private volatile boolean running = true;
+
+    // buffers sent by the peer, and given back to it once consumed
+    private final SpscRingQueue<ByteBuffer> receivedBuffers = new SpscRingQueue<>(BUFFER_COUNT);
+    private final SpscRingQueue<ByteBuffer> consumedBuffers = new SpscRingQueue<>(BUFFER_COUNT);
+
+    // buffers written to the peer, and given back by it once read
+    private final SpscRingQueue<ByteBuffer> sentBuffers = new SpscRingQueue<>(BUFFER_COUNT);
+    private final SpscRingQueue<ByteBuffer> freeBuffers = new SpscRingQueue<>(BUFFER_COUNT);
+    // buffer being filled by write(), handed over once full or flushed
+    private ByteBuffer pendingBuffer;
+    // set by the writer when write() could not accept everything, reset by the peer
+    private volatile boolean writeBlocked;
+
+    /**
+     * The phone side of the transport, to be used by a single thread.
+     */
+    public final class Peer {
+        // buffers sent and not given back yet
+        private int outstanding;
+        private volatile Runnable dataListener;
+
+        private Peer() {
+        }
+
+        /**
+         * Send data to the relay. The buffer is owned by the relay until returned by {@link #reclaim()}.
+         *
+         * @param buffer The data, a sequence of IPv4 packets, between its position and its limit.
+         * @return {@code false} if too many buffers are not reclaimed yet, the buffer not being sent.
+         */
+        public boolean send(ByteBuffer buffer) {
+            if (outstanding == BUFFER_COUNT) {
+                return false;
+            }
+            ++outstanding;
+            receivedBuffers.offer(buffer);
+            onReceived();
+            return true;
+        }
+
+        /**
+         * @return A buffer sent earlier and consumed by the relay, or {@code null} if none.
+         */
+        public ByteBuffer reclaim() {
+            ByteBuffer buffer = consumedBuffers.poll();
+            if (buffer != null) {
+                --outstanding;
+            }
+            return buffer;
+        }
+
+        /**
+         * Receive the data written by the relay. The buffer must be given back by {@link #release(ByteBuffer)}.
+         *
+         * @return The data, a sequence of IPv4 packets, or {@code null} if none.
+         */
+        public ByteBuffer receive() {
+            return sentBuffers.poll();
+        }
+
+        public void release(ByteBuffer buffer) {
+            buffer.clear();
+            freeBuffers.offer(buffer);
+            if (writeBlocked) {
+                writeBlocked = false;
+                notifyWritable();
+            }
+        }
+
+        /**
+         * @param dataListener Called from the writer thread when data is available to {@link #receive()}.
+         */
+        public void setDataListener(Runnable dataListener) {
+            this.dataListener = dataListener;
+        }
+    }
+
+    public MemoryTransport(EventLoop eventLoop) {
+        super(eventLoop);
+        for (int i = 0; i < BUFFER_COUNT; ++i) {
+            freeBuffers.offer(ByteBuffer.allocate(BUFFER_SIZE));
+        }
+    }
+
+    public Peer getPeer() {
+        return peer;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return running;
+    }
+
+    @Override
+    public ByteBuffer take() {
+        return receivedBuffers.poll();
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+        // the peer sent at most BUFFER_COUNT buffers not reclaimed yet, so this never fails
+        consumedBuffers.offer(buffer);
+    }
+
+    @Override
+    public boolean hasReceivedData() {
+        return !receivedBuffers.isEmpty();
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        if (!running) {
+            return -1;
+        }
+        int count = 0;
+        while (src.hasRemaining()) {
+            if (pendingBuffer == null) {
+                pendingBuffer = takeFreeBuffer();
+                if (pendingBuffer == null) {
+                    break;
+                }
+            }
+            count += Binary.transfer(src, pendingBuffer);
+            if (!pendingBuffer.hasRemaining()) {
+                flush();
+            }
+        }
+        return count;
+    }
+
+    private ByteBuffer takeFreeBuffer() {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null) {
+            writeBlocked = true;
+            // a buffer may have been released meanwhile, before seeing writeBlocked
+            buffer = freeBuffers.poll();
+            if (buffer != null) {
+                writeBlocked = false;
+            }
+        }
+        return buffer;
+    }
+
+    @Override
+    public boolean isWriteBlocked() {
+        return writeBlocked;
+    }
+
+    @Override
+    public void flush() {
+        if (pendingBuffer == null) {
+            return;
+        }
+        pendingBuffer.flip();
+        sentBuffers.offer(pendingBuffer);
+        pendingBuffer = null;
+        Runnable listener = peer.dataListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    @Override
+    public void flushLater() {
+        // nothing to save by lingering in memory
+        flush();
+    }
+
+    @Override
+    public boolean hasUnflushedData() {
+        return pendingBuffer != null;
+    }
+
+    @Override
+    public long getFlushDeadline() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        getEventLoop().unregister(this);
+    }
+}
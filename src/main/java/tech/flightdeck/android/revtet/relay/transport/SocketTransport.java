@@ -0,0 +1,219 @@
+package tech.flightdeck.android.revtet.relay.transport;
+
+import lombok.extern.slf4j.Slf4j;
+import tech.flightdeck.android.revtet.relay.loop.EventLoop;
+import tech.flightdeck.android.revtet.relay.loop.SpscRingQueue;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Transport to a phone connected over TCP, carrying the same stream as the USB accessory.
+ * <p>
+ * The socket is read by the {@link SocketTransportServer} thread, which stops reading while the received buffers are
+ * not consumed, and written directly by the writer, the kernel coalescing the writes.
+ */
+@Slf4j
+public class SocketTransport extends Transport {
+    private static final int BUFFER_SIZE = Integer.getInteger("revtet.tcp.bufferSize", 64 * 1024);
+    private static final int BUFFER_COUNT = 16;
+
+    private final SocketChannel channel;
+    private final SocketTransportServer server;
+    // only accessed from the server thread
+    private final SelectionKey key;
+    private volatile boolean running = true;
+
+    // received buffers, handed over from the server thread to the consumer without copy
+    private final SpscRingQueue<ByteBuffer> receivedBuffers = new SpscRingQueue<>(BUFFER_COUNT);
+    // buffers given back by the consumer to the server thread
+    private final SpscRingQueue<ByteBuffer> freeBuffers = new SpscRingQueue<>(BUFFER_COUNT);
+    // buffer being filled, only accessed from the server thread
+    private ByteBuffer readingBuffer;
+    // set by the server thread while reads are paused, so that release() resumes them
+    private volatile boolean readThrottled;
+    private final AtomicBoolean resumeScheduled = new AtomicBoolean();
+
+    // set by the writer when write() could not accept everything, reset by the server thread
+    private volatile boolean writeBlocked;
+
+    /**
+     * Must be called from the server thread.
+     */
+    SocketTransport(SocketChannel channel, EventLoop eventLoop, SocketTransportServer server) throws IOException {
+        super(eventLoop);
+        this.channel = channel;
+        this.server = server;
+        channel.configureBlocking(false);
+        // the writes are already batched by the client
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        for (int i = 0; i < BUFFER_COUNT; ++i) {
+            freeBuffers.offer(ByteBuffer.allocate(BUFFER_SIZE));
+        }
+        key = server.register(channel, this);
+    }
+
+    /**
+     * Called from the server thread when the socket is ready.
+     */
+    void processReady(SelectionKey key) {
+        if (key.isWritable()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            writeBlocked = false;
+            notifyWritable();
+        }
+        if (key.isValid() && key.isReadable()) {
+            receive();
+        }
+    }
+
+    private void receive() {
+        if (readingBuffer == null) {
+            readingBuffer = pollFreeBuffer();
+            if (readingBuffer == null) {
+                // the peer is backpressured by the TCP window
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                return;
+            }
+        }
+        int count;
+        try {
+            count = channel.read(readingBuffer);
+        } catch (IOException e) {
+            log.error("Read error, closing.", e);
+            count = -1;
+        }
+        if (count == -1) {
+            key.interestOps(0);
+            close();
+            return;
+        }
+        if (count > 0) {
+            // a partially filled buffer is handed over anyway, it must not wait for more data
+            readingBuffer.flip();
+            receivedBuffers.offer(readingBuffer);
+            readingBuffer = null;
+            onReceived();
+        }
+    }
+
+    private ByteBuffer pollFreeBuffer() {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null) {
+            readThrottled = true;
+            // a buffer may have been released meanwhile, before seeing readThrottled
+            buffer = freeBuffers.poll();
+            if (buffer != null) {
+                readThrottled = false;
+            }
+        }
+        return buffer;
+    }
+
+    private void resumeReads() {
+        resumeScheduled.set(false);
+        readThrottled = false;
+        if (key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return running;
+    }
+
+    @Override
+    public ByteBuffer take() {
+        return receivedBuffers.poll();
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+        buffer.clear();
+        freeBuffers.offer(buffer);
+        if (readThrottled && resumeScheduled.compareAndSet(false, true)) {
+            server.execute(this::resumeReads);
+        }
+    }
+
+    @Override
+    public boolean hasReceivedData() {
+        return !receivedBuffers.isEmpty();
+    }
+
+    /**
+     * Write data to the socket, without blocking.
+     * <p>
+     * Once the socket send buffer is full, only part of {@code src}, possibly nothing, is accepted; the writable
+     * listener is notified when the socket is writable again.
+     *
+     * @return The number of bytes accepted, or -1 once closed.
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!running) {
+            return -1;
+        }
+        int count = channel.write(src);
+        if (src.hasRemaining()) {
+            writeBlocked = true;
+            server.execute(() -> {
+                if (key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            });
+        }
+        return count;
+    }
+
+    @Override
+    public boolean isWriteBlocked() {
+        return writeBlocked;
+    }
+
+    @Override
+    public void flush() {
+        // written directly to the socket
+    }
+
+    @Override
+    public void flushLater() {
+        // written directly to the socket
+    }
+
+    @Override
+    public boolean hasUnflushedData() {
+        return false;
+    }
+
+    @Override
+    public long getFlushDeadline() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Close the socket and detach the transport from its event loop.
+     */
+    @Override
+    public void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        server.execute(() -> {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.error("Cannot close TCP transport", e);
+            }
+            getEventLoop().unregister(this);
+            log.info("TCP transport closed");
+        });
+    }
+}
@@ -0,0 +1,129 @@
+package tech.flightdeck.android.revtet.relay.transport;
+
+import lombok.extern.slf4j.Slf4j;
+import tech.flightdeck.android.revtet.relay.loop.EventLoop;
+import tech.flightdeck.android.revtet.relay.loop.EventLoopGroup;
+import tech.flightdeck.android.revtet.relay.loop.MpscLinkedQueue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Server accepting phones connected over TCP, e.g. through {@code adb reverse} or from an emulator, each connection
+ * becoming a {@link SocketTransport}.
+ * <p>
+ * A single thread accepts the connections and reads all the sockets, handing the received buffers over to the event
+ * loops owning the transports, like the USB reactor does for the accessories.
+ */
+@Slf4j
+public class SocketTransportServer {
+    private final EventLoopGroup eventLoopGroup;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final MpscLinkedQueue<Runnable> tasks = new MpscLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private Thread thread;
+
+    public SocketTransportServer(InetSocketAddress address, EventLoopGroup eventLoopGroup) throws IOException {
+        this.eventLoopGroup = eventLoopGroup;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public void start() {
+        thread = new Thread(this::run, "TCP Transport Reactor");
+        thread.setDaemon(true);
+        thread.start();
+        log.info("Accepting TCP transports on {}", serverChannel.socket().getLocalSocketAddress());
+    }
+
+    /**
+     * Run a task on the reactor thread.
+     * <p>
+     * May be called from any thread.
+     */
+    void execute(Runnable task) {
+        tasks.offer(task);
+        if (Thread.currentThread() != thread && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    SelectionKey register(SocketChannel channel, SocketTransport transport) throws IOException {
+        return channel.register(selector, SelectionKey.OP_READ, transport);
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                selector.select();
+                wakeupPending.set(false);
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (key.isValid()) {
+                        processKey(key);
+                    }
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (Throwable e) {
+                        log.error("TCP transport reactor task failed", e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.error("TCP transport reactor failed", e);
+        }
+    }
+
+    private void processKey(SelectionKey key) {
+        if (key.isAcceptable()) {
+            try {
+                accept();
+            } catch (Throwable e) {
+                // the server socket stays open, the next connection may be accepted
+                log.error("Cannot accept TCP transport", e);
+            }
+            return;
+        }
+        SocketTransport transport = (SocketTransport) key.attachment();
+        try {
+            transport.processReady(key);
+        } catch (Throwable e) {
+            // only this phone is disconnected
+            log.error("Error on TCP transport, closing it", e);
+            transport.close();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        log.info("TCP transport connected from {}", channel.getRemoteAddress());
+        EventLoop eventLoop = eventLoopGroup.next();
+        try {
+            SocketTransport transport = new SocketTransport(channel, eventLoop, this);
+            transport.createClient();
+            eventLoop.register(transport);
+        } catch (IOException | RuntimeException e) {
+            log.error("Cannot attach TCP transport", e);
+            eventLoop.release();
+            channel.close();
+        }
+    }
+}
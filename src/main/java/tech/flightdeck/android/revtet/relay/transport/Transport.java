@@ -0,0 +1,233 @@
+package tech.flightdeck.android.revtet.relay.transport;
+
+import tech.flightdeck.android.revtet.relay.entity.Client;
+import tech.flightdeck.android.revtet.relay.loop.EventLoop;
+import tech.flightdeck.android.revtet.relay.network.Binary;
+import tech.flightdeck.android.revtet.relay.network.BufferSource;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Link to a phone, carrying the IPv4 packets of its {@link Client}.
+ * <p>
+ * The received data is handed over as buffers (see {@link BufferSource}) to a single consumer, and written data may be
+ * coalesced until flushed. Writes never block: once the transport cannot accept more data, {@link #write(ByteBuffer)}
+ * accepts only part of its input and the writable listener is notified later. Once the transport is closed, e.g. when
+ * the phone goes away, it returns -1 rather than throwing.
+ * <p>
+ * A transport is pinned to an event loop, which processes its client whenever it is scheduled.
+ */
+public abstract class Transport implements ByteChannel, Flushable, BufferSource {
+    private final EventLoop eventLoop;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    // null until created or resumed, and once detached
+    private volatile Client client;
+    private volatile Runnable writableListener;
+    // buffer partially consumed by read()
+    private ByteBuffer readingBuffer;
+
+    protected Transport(EventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+    }
+
+    /**
+     * Create a new client, before the transport is registered to its event loop.
+     *
+     * @return The client.
+     */
+    public Client createClient() {
+        client = new Client(this, eventLoop, object -> {
+        });
+        return client;
+    }
+
+    /**
+     * Attach a parked client, which resumes its session on this transport.
+     * <p>
+     * Must only be called from the event loop thread.
+     *
+     * @param client The client, which must be pinned to the event loop of this transport.
+     */
+    public void resumeClient(Client client) {
+        this.client = client;
+        client.resume(this);
+    }
+
+    /**
+     * Detach the client, which is parked. The transport then ignores the data received, and never writes again.
+     * <p>
+     * Must only be called from the event loop thread.
+     *
+     * @return The client, or {@code null} if none.
+     */
+    public Client detachClient() {
+        Client detached = client;
+        client = null;
+        if (detached != null) {
+            detached.park();
+        }
+        return detached;
+    }
+
+    /**
+     * Release everything held by the transport once unregistered from its event loop: its client, unless detached
+     * before, is shut down, and the transport is closed.
+     * <p>
+     * Must only be called from the event loop thread, by {@link EventLoop#unregister(Transport)}.
+     */
+    public void dispose() {
+        Client client = detachClient();
+        if (client != null) {
+            client.shutdown();
+        }
+        if (readingBuffer != null) {
+            release(readingBuffer);
+            readingBuffer = null;
+        }
+        close();
+    }
+
+    /**
+     * @return The serial number of the phone, identifying its session across reconnections, or {@code null} if
+     * unknown.
+     */
+    public String getSerial() {
+        return null;
+    }
+
+    public Client getClient() {
+        return client;
+    }
+
+    /**
+     * Notify the client that data has been received.
+     * <p>
+     * May be called from any thread.
+     */
+    protected void onReceived() {
+        Client client = this.client;
+        if (client != null) {
+            client.onReceived();
+        }
+    }
+
+    /**
+     * Copy the received data to {@code dst}.
+     * <p>
+     * Must not be mixed with {@link #take()}.
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int count = 0;
+        while (dst.hasRemaining()) {
+            if (readingBuffer == null) {
+                readingBuffer = take();
+                if (readingBuffer == null) {
+                    break;
+                }
+            }
+            count += Binary.transfer(readingBuffer, dst);
+            if (!readingBuffer.hasRemaining()) {
+                release(readingBuffer);
+                readingBuffer = null;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param writableListener Called, from any thread, when {@link #write(ByteBuffer)} may accept data again after it
+     *                         accepted only part of its input.
+     */
+    public void setWritableListener(Runnable writableListener) {
+        this.writableListener = writableListener;
+    }
+
+    /**
+     * Notify the writable listener. Must only be called once a write blocked.
+     */
+    protected void notifyWritable() {
+        Runnable listener = writableListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * @return Whether the last write could not accept everything, the writable listener being notified once it can.
+     */
+    public abstract boolean isWriteBlocked();
+
+    /**
+     * @return Whether received data is waiting to be taken.
+     */
+    public abstract boolean hasReceivedData();
+
+    /**
+     * Flush now, or let the event loop flush at the deadline given by {@link #getFlushDeadline()}.
+     * <p>
+     * Must only be called from the event loop thread.
+     */
+    public abstract void flushLater();
+
+    public abstract boolean hasUnflushedData();
+
+    /**
+     * @return The {@link System#nanoTime()} at which the written data must be flushed.
+     */
+    public abstract long getFlushDeadline();
+
+    @Override
+    public abstract void flush();
+
+    /**
+     * Close the transport, without blocking.
+     */
+    @Override
+    public abstract void close();
+
+    public EventLoop getEventLoop() {
+        return eventLoop;
+    }
+
+    /**
+     * Schedule this transport on its event loop, so that pending data is processed.
+     * <p>
+     * May be called from any thread.
+     */
+    public void requestProcessing() {
+        eventLoop.schedule(this);
+    }
+
+    public boolean markScheduled() {
+        return scheduled.compareAndSet(false, true);
+    }
+
+    public void clearScheduled() {
+        scheduled.set(false);
+    }
+
+    public boolean hasPendingWork() {
+        Client client = this.client;
+        return client != null && client.hasPendingWork();
+    }
+
+    public void processReceive() {
+        Client client = this.client;
+        if (client != null) {
+            client.processReceive();
+        }
+    }
+
+    public void processSend() {
+        Client client = this.client;
+        if (client != null) {
+            client.processSend();
+        }
+    }
+}
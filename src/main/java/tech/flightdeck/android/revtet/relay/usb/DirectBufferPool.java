@@ -0,0 +1,70 @@
+package tech.flightdeck.android.revtet.relay.usb;
+
+import tech.flightdeck.android.revtet.relay.loop.ResourceCounters;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of the direct buffers of the USB transfers, shared by all the accessories.
+ * <p>
+ * Direct memory is only reclaimed once the garbage collector finds the buffers unreachable, which may take a long time
+ * since they barely weigh on the heap, so the buffers of a detached accessory are kept for the next one instead.
+ * <p>
+ * Thread-safe.
+ */
+public final class DirectBufferPool {
+    /**
+     * Maximum number of bytes kept in the pool, the buffers released beyond being left to the garbage collector.
+     */
+    private static final long MAX_POOLED = Long.getLong("revtet.usb.bufferPoolSize", 8 * 1024 * 1024);
+
+    // free buffers, by capacity
+    private static final Map<Integer, Queue<ByteBuffer>> FREE = new ConcurrentHashMap<>();
+    private static final AtomicLong POOLED = new AtomicLong();
+
+    private DirectBufferPool() {
+        // not instantiable
+    }
+
+    /**
+     * @param capacity The capacity of the buffer.
+     * @return A cleared direct buffer, from the pool if possible.
+     */
+    public static ByteBuffer acquire(int capacity) {
+        ResourceCounters.USB_BUFFERS.acquired();
+        ByteBuffer buffer = FREE.computeIfAbsent(capacity, c -> new ConcurrentLinkedQueue<>()).poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        POOLED.addAndGet(-capacity);
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back to the pool. It must not be used anymore.
+     *
+     * @param buffer A buffer returned by {@link #acquire(int)}.
+     */
+    public static void release(ByteBuffer buffer) {
+        ResourceCounters.USB_BUFFERS.released();
+        int capacity = buffer.capacity();
+        if (POOLED.addAndGet(capacity) > MAX_POOLED) {
+            POOLED.addAndGet(-capacity);
+            return;
+        }
+        buffer.clear();
+        FREE.computeIfAbsent(capacity, c -> new ConcurrentLinkedQueue<>()).offer(buffer);
+    }
+
+    /**
+     * @return The number of bytes kept in the pool.
+     */
+    public static long getPooledBytes() {
+        return POOLED.get();
+    }
+}
@@ -0,0 +1,202 @@
+package tech.flightdeck.android.revtet.relay.usb;
+
+import lombok.extern.slf4j.Slf4j;
+import org.usb4java.Context;
+import org.usb4java.Device;
+import org.usb4java.DeviceDescriptor;
+import org.usb4java.DeviceHandle;
+import org.usb4java.DeviceList;
+import org.usb4java.LibUsb;
+import org.usb4java.LibUsbException;
+import org.usb4java.Transfer;
+import tech.flightdeck.android.revtet.relay.loop.MpscLinkedQueue;
+
+import javax.usb.UsbDevice;
+import javax.usb.UsbDeviceDescriptor;
+import javax.usb.UsbException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Single thread driving the asynchronous bulk transfers of all the accessories.
+ * <p>
+ * It handles the events of its own libusb context, so the transfer callbacks run on this thread, whatever the number
+ * of attached phones. Callbacks must not block: they only hand the completed transfers over to the event loop owning
+ * the accessory. libusb lets only one thread handle the events of a context at a time, so a single reactor thread is
+ * enough.
+ * <p>
+ * The devices found by javax.usb are opened again in this context (see {@link #open(UsbDevice, String)}), the handles
+ * being owned by the caller.
+ */
+@Slf4j
+public final class UsbReactor {
+    // maximum time waiting for events, in microseconds, so that a missed interrupt only delays the tasks
+    private static final long EVENT_TIMEOUT = 100_000;
+
+    private static UsbReactor instance;
+
+    private final Context context = new Context();
+    private final MpscLinkedQueue<Runnable> tasks = new MpscLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    private UsbReactor() throws UsbException {
+        int result = LibUsb.init(context);
+        if (result != LibUsb.SUCCESS) {
+            throw new UsbException("Cannot initialize libusb: " + LibUsb.errorName(result));
+        }
+        thread = new Thread(this::run, "USB Reactor");
+        thread.setDaemon(true);
+        thread.start();
+        log.info("USB reactor started");
+    }
+
+    public static synchronized UsbReactor getInstance() throws UsbException {
+        if (instance == null) {
+            instance = new UsbReactor();
+        }
+        return instance;
+    }
+
+    /**
+     * Stop the reactor, its context being released once the loop exits. The device handles must have been closed
+     * before.
+     * <p>
+     * The next call to {@link #getInstance()} starts a new reactor.
+     */
+    public void close() {
+        synchronized (UsbReactor.class) {
+            if (instance == this) {
+                instance = null;
+            }
+        }
+        running = false;
+        LibUsb.interruptEventHandler(context);
+    }
+
+    /**
+     * Open a device found by javax.usb in the context of the reactor, matching its vendor id, product id and serial
+     * number.
+     *
+     * @param device The device, from the javax.usb services.
+     * @param serial The serial number of the device, or {@code null} if unknown. In both cases, a single device must
+     *               match.
+     * @return The handle, to be closed by {@link #close(DeviceHandle)}.
+     * @throws UsbException If the device is not found, or cannot be opened.
+     */
+    public DeviceHandle open(UsbDevice device, String serial) throws UsbException {
+        UsbDeviceDescriptor expected = device.getUsbDeviceDescriptor();
+        DeviceList list = new DeviceList();
+        int result = LibUsb.getDeviceList(context, list);
+        if (result < 0) {
+            throw new UsbException("Cannot list USB devices: " + LibUsb.errorName(result));
+        }
+        DeviceHandle found = null;
+        try {
+            for (Device candidate : list) {
+                DeviceDescriptor descriptor = new DeviceDescriptor();
+                if (LibUsb.getDeviceDescriptor(candidate, descriptor) != LibUsb.SUCCESS
+                        || descriptor.idVendor() != expected.idVendor()
+                        || descriptor.idProduct() != expected.idProduct()) {
+                    continue;
+                }
+                DeviceHandle handle = new DeviceHandle();
+                result = LibUsb.open(candidate, handle);
+                if (result != LibUsb.SUCCESS) {
+                    log.debug("Cannot open a candidate for {}: {}", device, LibUsb.errorName(result));
+                    continue;
+                }
+                if (serial != null && !serial.equals(getSerial(handle, descriptor))) {
+                    LibUsb.close(handle);
+                    continue;
+                }
+                if (found != null) {
+                    LibUsb.close(handle);
+                    LibUsb.close(found);
+                    throw new UsbException("Several devices match " + device);
+                }
+                found = handle;
+            }
+        } finally {
+            // the opened handle keeps a reference to its device
+            LibUsb.freeDeviceList(list, true);
+        }
+        if (found == null) {
+            throw new UsbException("Cannot open " + device + ": not found");
+        }
+        return found;
+    }
+
+    private static String getSerial(DeviceHandle handle, DeviceDescriptor descriptor) {
+        if (descriptor.iSerialNumber() == 0) {
+            return null;
+        }
+        try {
+            return LibUsb.getStringDescriptor(handle, descriptor.iSerialNumber());
+        } catch (LibUsbException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Close a handle returned by {@link #open(UsbDevice, String)}, once no transfer is in flight on it.
+     *
+     * @param handle The handle.
+     */
+    public void close(DeviceHandle handle) {
+        LibUsb.close(handle);
+    }
+
+    /**
+     * Submit a filled transfer. Its callback is called from the reactor thread.
+     * <p>
+     * May be called from any thread.
+     *
+     * @param transfer The transfer.
+     * @throws LibUsbException If the transfer cannot be submitted.
+     */
+    public void submit(Transfer transfer) {
+        int result = LibUsb.submitTransfer(transfer);
+        if (result != LibUsb.SUCCESS) {
+            throw new LibUsbException("Cannot submit transfer", result);
+        }
+    }
+
+    /**
+     * Run a task on the reactor thread.
+     * <p>
+     * May be called from any thread.
+     *
+     * @param task The task, which must not block.
+     */
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        if (!inReactor() && wakeupPending.compareAndSet(false, true)) {
+            LibUsb.interruptEventHandler(context);
+        }
+    }
+
+    public boolean inReactor() {
+        return Thread.currentThread() == thread;
+    }
+
+    private void run() {
+        while (running) {
+            int result = LibUsb.handleEventsTimeout(context, EVENT_TIMEOUT);
+            if (result != LibUsb.SUCCESS && result != LibUsb.ERROR_INTERRUPTED) {
+                log.error("Cannot handle USB events: {}", LibUsb.errorName(result));
+            }
+            wakeupPending.set(false);
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.error("USB reactor task failed", e);
+                }
+            }
+        }
+        LibUsb.exit(context);
+        log.info("USB reactor stopped");
+    }
+}
@@ -1,4 +0,0 @@
-package tech.flightdeck.android.revtet.relay.entity;
-
-public class AccessoryTests {
-}
@@ -0,0 +1,123 @@
+package tech.flightdeck.android.revtet.relay.entity;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import tech.flightdeck.android.revtet.relay.loop.EventLoop;
+import tech.flightdeck.android.revtet.relay.loop.EventLoopGroup;
+import tech.flightdeck.android.revtet.relay.loop.ResourceCounters;
+import tech.flightdeck.android.revtet.relay.loop.SelectorEventLoop;
+import tech.flightdeck.android.revtet.relay.network.TestPackets;
+import tech.flightdeck.android.revtet.relay.network.UdpEcho;
+import tech.flightdeck.android.revtet.relay.transport.MemoryTransport;
+import tech.flightdeck.android.revtet.relay.transport.TestPeer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ClientTest {
+    private static EventLoop eventLoop;
+    private static UdpEcho echo;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        EventLoopGroup group = new EventLoopGroup(1);
+        group.start();
+        eventLoop = group.next();
+        echo = new UdpEcho();
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        echo.close();
+    }
+
+    private static MemoryTransport connect() {
+        MemoryTransport transport = new MemoryTransport(eventLoop);
+        transport.createClient();
+        eventLoop.register(transport);
+        return transport;
+    }
+
+    @Test(timeout = 20_000)
+    public void testWriteBackpressure() throws Exception {
+        MemoryTransport transport = connect();
+        TestPeer peer = new TestPeer(transport);
+        // the peer does not read, until the transport is full
+        for (int i = 0; !transport.isWriteBlocked(); ++i) {
+            Assert.assertTrue("The transport never blocked", i < 10_000);
+            peer.send(TestPackets.udp(40000, echo.getPort(), 1400, i));
+            if (i % 32 == 0) {
+                Thread.sleep(1);
+            }
+        }
+        // the client keeps the data not accepted until the peer releases buffers
+        MemoryTransport.Peer raw = transport.getPeer();
+        List<ByteBuffer> held = new ArrayList<>();
+        ByteBuffer buffer;
+        while ((buffer = raw.receive()) != null) {
+            held.add(buffer);
+        }
+        Thread.sleep(100);
+        Assert.assertNull(raw.receive());
+        Assert.assertTrue(transport.isWriteBlocked());
+        // the writable listener resumes the client
+        for (ByteBuffer released : held) {
+            raw.release(released);
+        }
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while ((buffer = raw.receive()) == null) {
+            Assert.assertTrue("The client did not resume writing", System.nanoTime() - deadline < 0);
+            Thread.sleep(1);
+        }
+        Assert.assertTrue(buffer.hasRemaining());
+        eventLoop.unregister(transport);
+    }
+
+    /**
+     * Send packets from distinct source ports in a single buffer, each one opening a new connection once routed.
+     */
+    private static void sendBurst(TestPeer peer, int firstPort, int count, int payloadLength)
+            throws InterruptedException {
+        ByteBuffer burst = ByteBuffer.allocate(count * (28 + payloadLength));
+        for (int i = 0; i < count; ++i) {
+            burst.put(TestPackets.udp(firstPort + i, 9, payloadLength, i));
+        }
+        burst.flip();
+        peer.send(burst);
+    }
+
+    private static long routed(long before) {
+        return ResourceCounters.CONNECTIONS.getAcquired() - before;
+    }
+
+    @Test
+    public void testReceiveDeficitRoundRobin() throws Exception {
+        // never started, the test thread services the client like the event loop would
+        SelectorEventLoop idleLoop = new SelectorEventLoop("Idle loop");
+        MemoryTransport transport = new MemoryTransport(idleLoop);
+        Client client = transport.createClient();
+        TestPeer peer = new TestPeer(transport);
+        // 1028 bytes per packet: 31 packets fit in the 32 KiB quantum of a visit, leaving 900 bytes of credit
+        sendBurst(peer, 30000, 100, 1000);
+        long before = ResourceCounters.CONNECTIONS.getAcquired();
+        client.processReceive();
+        Assert.assertEquals(31, routed(before));
+        Assert.assertTrue(client.hasPendingWork());
+        // the credit left is carried over: 900 + 32768 bytes cover 32 packets
+        client.processReceive();
+        Assert.assertEquals(63, routed(before));
+        client.processReceive();
+        Assert.assertEquals(95, routed(before));
+        client.processReceive();
+        Assert.assertEquals(100, routed(before));
+
+        // the credit is not accumulated while idle
+        sendBurst(peer, 31000, 100, 1000);
+        client.processReceive();
+        Assert.assertEquals(131, routed(before));
+        client.shutdown();
+    }
+}
@@ -0,0 +1,122 @@
+package tech.flightdeck.android.revtet.relay.entity;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import tech.flightdeck.android.revtet.relay.loop.EventLoop;
+import tech.flightdeck.android.revtet.relay.loop.EventLoopGroup;
+import tech.flightdeck.android.revtet.relay.loop.ResourceCounters;
+import tech.flightdeck.android.revtet.relay.network.TestPackets;
+import tech.flightdeck.android.revtet.relay.network.UdpEcho;
+import tech.flightdeck.android.revtet.relay.transport.MemoryTransport;
+import tech.flightdeck.android.revtet.relay.transport.TestPeer;
+
+import java.nio.ByteBuffer;
+
+public class SessionStoreTest {
+    private static final String SERIAL = "0123456789";
+
+    private static EventLoop eventLoop;
+    private static UdpEcho echo;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        EventLoopGroup group = new EventLoopGroup(1);
+        group.start();
+        eventLoop = group.next();
+        echo = new UdpEcho();
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        echo.close();
+    }
+
+    private static MemoryTransport connect() {
+        MemoryTransport transport = new MemoryTransport(eventLoop);
+        transport.createClient();
+        eventLoop.register(transport);
+        return transport;
+    }
+
+    private static Client detachAndPark(SessionStore store, MemoryTransport transport) throws Exception {
+        return TestPeer.call(eventLoop, () -> {
+            Client client = transport.detachClient();
+            store.park(SERIAL, client);
+            eventLoop.unregister(transport);
+            return client;
+        });
+    }
+
+    private static MemoryTransport resume(Client client) throws Exception {
+        MemoryTransport transport = new MemoryTransport(eventLoop);
+        TestPeer.call(eventLoop, () -> {
+            transport.resumeClient(client);
+            return null;
+        });
+        eventLoop.reserve();
+        eventLoop.register(transport);
+        return transport;
+    }
+
+    private static void assertEcho(TestPeer peer, int seed) throws InterruptedException {
+        ByteBuffer packet = TestPackets.udp(40000, echo.getPort(), 32, seed);
+        peer.send(packet);
+        ByteBuffer reply = peer.receive(5000);
+        Assert.assertNotNull("No reply received", reply);
+        // same payload, at the end of the UDP packet
+        ByteBuffer expected = packet.duplicate();
+        expected.position(expected.limit() - 32);
+        ByteBuffer actual = reply.duplicate();
+        actual.position(actual.limit() - 32);
+        Assert.assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        SessionStore store = new SessionStore(60_000);
+        MemoryTransport transport = connect();
+        assertEcho(new TestPeer(transport), 1);
+
+        Client client = detachAndPark(store, transport);
+        Assert.assertSame(client, store.take(SERIAL));
+        Assert.assertNull(store.take(SERIAL));
+
+        // the session, with its UDP connection, continues on the new transport
+        MemoryTransport resumed = resume(client);
+        Assert.assertSame(client, resumed.getClient());
+        assertEcho(new TestPeer(resumed), 2);
+        eventLoop.unregister(resumed);
+    }
+
+    @Test
+    public void testExpire() throws Exception {
+        SessionStore store = new SessionStore(200);
+        MemoryTransport transport = connect();
+        assertEcho(new TestPeer(transport), 3);
+
+        long released = ResourceCounters.CLIENTS.getReleased();
+        detachAndPark(store, transport);
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (ResourceCounters.CLIENTS.getReleased() == released) {
+            Assert.assertTrue("The session did not expire", System.nanoTime() - deadline < 0);
+            Thread.sleep(10);
+        }
+        Assert.assertNull(store.take(SERIAL));
+    }
+
+    @Test
+    public void testParkTwice() throws Exception {
+        SessionStore store = new SessionStore(60_000);
+        long released = ResourceCounters.CLIENTS.getReleased();
+        detachAndPark(store, connect());
+        Client second = detachAndPark(store, connect());
+        // the oldest session is shut down, only the last one may be resumed
+        Assert.assertSame(second, store.take(SERIAL));
+        Assert.assertNull(store.take(SERIAL));
+        TestPeer.call(eventLoop, () -> null);
+        Assert.assertEquals(released + 1, ResourceCounters.CLIENTS.getReleased());
+        TestPeer.call(eventLoop, second::shutdown);
+    }
+}
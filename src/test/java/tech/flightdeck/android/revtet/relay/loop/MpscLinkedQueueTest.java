@@ -0,0 +1,78 @@
+package tech.flightdeck.android.revtet.relay.loop;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class MpscLinkedQueueTest {
+    @Test
+    public void testEmpty() {
+        MpscLinkedQueue<Integer> queue = new MpscLinkedQueue<>();
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertNull(queue.peek());
+        Assert.assertNull(queue.poll());
+    }
+
+    @Test
+    public void testFifo() {
+        MpscLinkedQueue<Integer> queue = new MpscLinkedQueue<>();
+        for (int i = 0; i < 10; ++i) {
+            queue.offer(i);
+        }
+        Assert.assertEquals(0, (int) queue.peek());
+        for (int i = 0; i < 10; ++i) {
+            Assert.assertFalse(queue.isEmpty());
+            Assert.assertEquals(i, (int) queue.poll());
+        }
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertNull(queue.poll());
+        // usable again once drained
+        queue.offer(10);
+        Assert.assertEquals(10, (int) queue.poll());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullRejected() {
+        new MpscLinkedQueue<Integer>().offer(null);
+    }
+
+    @Test(timeout = 30_000)
+    public void testConcurrentProducers() throws InterruptedException {
+        int producers = 4;
+        int perProducer = 500_000;
+        MpscLinkedQueue<long[]> queue = new MpscLinkedQueue<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; ++p) {
+            long producer = p;
+            Thread thread = new Thread(() -> {
+                for (long i = 0; i < perProducer; ++i) {
+                    queue.offer(new long[]{producer, i});
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        // the elements of each producer are received in order, none is lost or duplicated
+        long[] next = new long[producers];
+        int received = 0;
+        while (received < producers * perProducer) {
+            long[] element = queue.poll();
+            if (element == null) {
+                Thread.yield();
+                continue;
+            }
+            int producer = (int) element[0];
+            Assert.assertEquals(next[producer]++, element[1]);
+            ++received;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertTrue(queue.isEmpty());
+        for (long count : next) {
+            Assert.assertEquals(perProducer, count);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package tech.flightdeck.android.revtet.relay.loop;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class SelectorEventLoopTest {
+    @Test(timeout = 5_000)
+    public void testTaskErrorKeepsLooping() throws Exception {
+        SelectorEventLoop eventLoop = new SelectorEventLoop("Test loop");
+        eventLoop.start();
+        CountDownLatch done = new CountDownLatch(1);
+        eventLoop.execute(() -> {
+            throw new IllegalStateException("Failing task");
+        });
+        eventLoop.execute(done::countDown);
+        Assert.assertTrue(done.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 5_000)
+    public void testTimeoutErrorKeepsLooping() throws Exception {
+        SelectorEventLoop eventLoop = new SelectorEventLoop("Test loop");
+        eventLoop.start();
+        CountDownLatch done = new CountDownLatch(1);
+        eventLoop.execute(() -> {
+            TimerWheel timerWheel = eventLoop.getTimerWheel();
+            timerWheel.schedule(timerWheel.newTimeout(() -> {
+                throw new IllegalStateException("Failing timeout");
+            }), eventLoop.now() + 100);
+            timerWheel.schedule(timerWheel.newTimeout(done::countDown), eventLoop.now() + 100);
+        });
+        Assert.assertTrue(done.await(2, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,63 @@
+package tech.flightdeck.android.revtet.relay.loop;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SignalTest {
+    @Test(timeout = 5_000)
+    public void testSignalBeforeAwaitIsNotLost() {
+        Signal signal = new Signal();
+        signal.signal();
+        // returns immediately
+        signal.await();
+    }
+
+    @Test(timeout = 5_000)
+    public void testSignalsCoalesce() throws InterruptedException {
+        Signal signal = new Signal();
+        signal.signal();
+        signal.signal();
+        signal.await();
+        // reset by the first await(), the next one blocks until signaled again
+        Thread waiter = new Thread(signal::await);
+        waiter.start();
+        waiter.join(200);
+        Assert.assertTrue(waiter.isAlive());
+        signal.signal();
+        waiter.join();
+    }
+
+    @Test(timeout = 5_000)
+    public void testInterrupt() throws InterruptedException {
+        Signal signal = new Signal();
+        Thread waiter = new Thread(signal::await);
+        waiter.start();
+        waiter.interrupt();
+        waiter.join();
+    }
+
+    @Test(timeout = 30_000)
+    public void testPingPong() throws InterruptedException {
+        // every signal wakes the waiter up, none is lost between a check and the park
+        int rounds = 100_000;
+        Signal request = new Signal();
+        Signal response = new Signal();
+        AtomicInteger value = new AtomicInteger();
+        Thread responder = new Thread(() -> {
+            for (int i = 0; i < rounds; ++i) {
+                request.await();
+                value.incrementAndGet();
+                response.signal();
+            }
+        });
+        responder.start();
+        for (int i = 0; i < rounds; ++i) {
+            request.signal();
+            response.await();
+            Assert.assertEquals(i + 1, value.get());
+        }
+        responder.join();
+    }
+}
@@ -0,0 +1,101 @@
+package tech.flightdeck.android.revtet.relay.loop;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SpscRingQueueTest {
+    @Test
+    public void testCapacityRoundedUp() {
+        Assert.assertEquals(8, new SpscRingQueue<Integer>(5).capacity());
+        Assert.assertEquals(8, new SpscRingQueue<Integer>(8).capacity());
+        Assert.assertEquals(1, new SpscRingQueue<Integer>(1).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCapacity() {
+        new SpscRingQueue<Integer>(0);
+    }
+
+    @Test
+    public void testEmpty() {
+        SpscRingQueue<Integer> queue = new SpscRingQueue<>(4);
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertEquals(0, queue.size());
+        Assert.assertNull(queue.peek());
+        Assert.assertNull(queue.poll());
+    }
+
+    @Test
+    public void testFull() {
+        SpscRingQueue<Integer> queue = new SpscRingQueue<>(4);
+        for (int i = 0; i < 4; ++i) {
+            Assert.assertFalse(queue.isFull());
+            Assert.assertTrue(queue.offer(i));
+        }
+        Assert.assertTrue(queue.isFull());
+        Assert.assertFalse(queue.offer(4));
+        Assert.assertEquals(4, queue.size());
+        Assert.assertEquals(0, (int) queue.poll());
+        // space again
+        Assert.assertFalse(queue.isFull());
+        Assert.assertTrue(queue.offer(4));
+        for (int i = 1; i <= 4; ++i) {
+            Assert.assertEquals(i, (int) queue.poll());
+        }
+        Assert.assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testPeekDoesNotRemove() {
+        SpscRingQueue<Integer> queue = new SpscRingQueue<>(4);
+        queue.offer(42);
+        Assert.assertEquals(42, (int) queue.peek());
+        Assert.assertEquals(42, (int) queue.peek());
+        Assert.assertEquals(1, queue.size());
+        Assert.assertEquals(42, (int) queue.poll());
+        Assert.assertNull(queue.peek());
+    }
+
+    @Test
+    public void testWrapAround() {
+        SpscRingQueue<Integer> queue = new SpscRingQueue<>(4);
+        int next = 0;
+        int expected = 0;
+        // the indices wrap around the array many times, with various fill levels
+        for (int round = 0; round < 1000; ++round) {
+            int count = 1 + round % 4;
+            for (int i = 0; i < count; ++i) {
+                Assert.assertTrue(queue.offer(next++));
+            }
+            Assert.assertEquals(count, queue.size());
+            for (int i = 0; i < count; ++i) {
+                Assert.assertEquals(expected++, (int) queue.poll());
+            }
+            Assert.assertTrue(queue.isEmpty());
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void testConcurrentOrdering() throws InterruptedException {
+        int count = 2_000_000;
+        SpscRingQueue<Integer> queue = new SpscRingQueue<>(64);
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < count; ++i) {
+                while (!queue.offer(i)) {
+                    Thread.yield();
+                }
+            }
+        });
+        producer.start();
+        for (int expected = 0; expected < count; ) {
+            Integer element = queue.poll();
+            if (element == null) {
+                Thread.yield();
+                continue;
+            }
+            Assert.assertEquals(expected++, (int) element);
+        }
+        producer.join();
+        Assert.assertTrue(queue.isEmpty());
+    }
+}
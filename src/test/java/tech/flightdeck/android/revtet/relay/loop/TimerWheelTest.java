@@ -0,0 +1,165 @@
+package tech.flightdeck.android.revtet.relay.loop;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TimerWheelTest {
+    private static final long TICK = 100;
+
+    private final List<Long> fired = new ArrayList<>();
+    private long now = 1_000_000;
+    private final TimerWheel wheel = new TimerWheel(TICK, now);
+
+    private Timeout schedule(long deadline) {
+        Timeout timeout = wheel.newTimeout(() -> fired.add(now));
+        wheel.schedule(timeout, deadline);
+        return timeout;
+    }
+
+    private void advanceTo(long time, long step) {
+        while (now < time) {
+            now = Math.min(now + step, time);
+            wheel.advance(now);
+        }
+    }
+
+    @Test
+    public void testFireAtDeadline() {
+        schedule(now + 250);
+        advanceTo(now + 200, TICK);
+        Assert.assertTrue(fired.isEmpty());
+        advanceTo(now + 100, TICK);
+        Assert.assertEquals(1, fired.size());
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testNeverFireEarly() {
+        long start = now;
+        // deadlines at each level of the wheel: 64 ticks per slot on level 1, 4096 on level 2, 262144 on level 3
+        long[] delays = {50, 6_300, 6_500, 400_000, 420_000, 26_000_000, 27_000_000};
+        for (long delay : delays) {
+            long deadline = start + delay;
+            wheel.schedule(wheel.newTimeout(() -> {
+                Assert.assertTrue("fired at " + now + " before " + deadline, now >= deadline);
+                // at most one tick late
+                Assert.assertTrue("fired at " + now + " after " + deadline, now < deadline + TICK);
+                fired.add(now);
+            }), deadline);
+        }
+        Assert.assertEquals(delays.length, wheel.size());
+        advanceTo(start + 28_000_000, TICK);
+        Assert.assertEquals(delays.length, fired.size());
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testCascadeOrder() {
+        long start = now;
+        List<Integer> order = new ArrayList<>();
+        // scheduled in reverse order, across several levels
+        for (int i = 5; i >= 0; --i) {
+            int index = i;
+            wheel.schedule(wheel.newTimeout(() -> order.add(index)), start + (long) Math.pow(8, i + 2) * TICK);
+        }
+        advanceTo(start + (long) Math.pow(8, 8) * TICK, TICK * 7);
+        Assert.assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), order);
+    }
+
+    @Test
+    public void testCancel() {
+        Timeout timeout = schedule(now + 500);
+        Timeout far = schedule(now + 10_000_000);
+        Assert.assertEquals(2, wheel.size());
+        timeout.cancel();
+        far.cancel();
+        Assert.assertFalse(timeout.isScheduled());
+        Assert.assertEquals(0, wheel.size());
+        // cancelling twice is harmless
+        timeout.cancel();
+        Assert.assertEquals(0, wheel.size());
+        advanceTo(now + 20_000_000, TICK * 1000);
+        Assert.assertTrue(fired.isEmpty());
+        Assert.assertEquals(-1, wheel.nextDeadline());
+    }
+
+    @Test
+    public void testReschedule() {
+        long start = now;
+        Timeout timeout = schedule(start + 500);
+        // postponed, like an idle connection touched again
+        wheel.schedule(timeout, start + 100_000);
+        Assert.assertEquals(1, wheel.size());
+        advanceTo(start + 1_000, TICK);
+        Assert.assertTrue(fired.isEmpty());
+        // brought forward
+        wheel.schedule(timeout, start + 2_000);
+        advanceTo(start + 2_000, TICK);
+        Assert.assertEquals(1, fired.size());
+        Assert.assertEquals(start + 2_000, (long) fired.get(0));
+    }
+
+    @Test
+    public void testRescheduleFromTask() {
+        Timeout[] timeout = new Timeout[1];
+        timeout[0] = wheel.newTimeout(() -> {
+            fired.add(now);
+            if (fired.size() < 3) {
+                wheel.schedule(timeout[0], now + 1_000);
+            }
+        });
+        wheel.schedule(timeout[0], now + 1_000);
+        advanceTo(now + 10_000, TICK);
+        Assert.assertEquals(3, fired.size());
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testLongClockJump() {
+        long start = now;
+        schedule(start + 1_000);
+        schedule(start + 600_000);
+        schedule(start + 3_600_000);
+        // e.g. the host was suspended for two hours
+        now = start + 7_200_000;
+        wheel.advance(now);
+        Assert.assertEquals(3, fired.size());
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testIdleClockJump() {
+        // nothing scheduled, the wheel jumps without iterating
+        now += 1_000_000_000L;
+        wheel.advance(now);
+        Timeout timeout = schedule(now + 300);
+        Assert.assertTrue(timeout.isScheduled());
+        advanceTo(now + 300, TICK);
+        Assert.assertEquals(1, fired.size());
+    }
+
+    @Test
+    public void testDeadlineBeyondRange() {
+        long start = now;
+        // farther than the wheel can hold, it is cascaded until due
+        long deadline = start + (1L << 24) * TICK * 3;
+        wheel.schedule(wheel.newTimeout(() -> {
+            Assert.assertTrue(now >= deadline);
+            fired.add(now);
+        }), deadline);
+        advanceTo(deadline + TICK, TICK * 4096);
+        Assert.assertEquals(1, fired.size());
+    }
+
+    @Test
+    public void testNextDeadline() {
+        Assert.assertEquals(-1, wheel.nextDeadline());
+        long start = now;
+        schedule(start + 350);
+        Assert.assertEquals(start + 400, wheel.nextDeadline());
+    }
+}
@@ -0,0 +1,193 @@
+package tech.flightdeck.android.revtet.relay.network;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class CoDelQueueTest {
+    // the defaults of revtet.aqm.target, revtet.aqm.interval and revtet.aqm.flowLimit
+    private static final long TARGET = 5_000_000;
+    private static final long INTERVAL = 100_000_000;
+    private static final int LIMIT = 256 * 1024;
+    private static final long MS = 1_000_000;
+
+    private final CoDelQueue queue = new CoDelQueue();
+    private long now = 1_000_000_000L;
+
+    private static IPv4Packet packet(int port) {
+        return new IPv4Packet(TestPackets.udp(port, 53000, 100, 0));
+    }
+
+    private static int port(IPv4Packet packet) {
+        return ((UDPHeader) packet.getTransportHeader()).getSourcePort();
+    }
+
+    @Test
+    public void testNoDropBelowTarget() {
+        for (int i = 0; i < 10_000; ++i) {
+            queue.offer(packet(1), now);
+            queue.offer(packet(2), now);
+            now += TARGET / 2;
+            Assert.assertEquals(1, port(queue.peek(now)));
+            queue.poll();
+            Assert.assertEquals(2, port(queue.peek(now)));
+            queue.poll();
+        }
+        Assert.assertNull(queue.peek(now));
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertEquals(0, queue.getDrops());
+    }
+
+    @Test
+    public void testNoDropWithSinglePacket() {
+        for (int i = 0; i < 100; ++i) {
+            queue.offer(packet(1), now);
+            // far above the target, but a single packet is no standing queue
+            now += INTERVAL;
+            Assert.assertNotNull(queue.peek(now));
+            queue.poll();
+        }
+        Assert.assertEquals(0, queue.getDrops());
+    }
+
+    @Test
+    public void testControlLaw() {
+        long start = now;
+        for (int i = 0; i < 2000; ++i) {
+            queue.offer(packet(1), start);
+        }
+        // one packet sent per millisecond, one arriving: the sojourn time stays far above the target
+        now += 10 * MS;
+        List<Long> dropTimes = new ArrayList<>();
+        while (now < start + 1000 * MS) {
+            queue.offer(packet(1), now);
+            long drops = queue.getDrops();
+            Assert.assertNotNull(queue.peek(now));
+            queue.poll();
+            for (long i = drops; i < queue.getDrops(); ++i) {
+                dropTimes.add(now);
+            }
+            now += MS;
+        }
+        // the sojourn time was first seen above the target at 10 ms, it must stay above for an interval
+        Assert.assertEquals(start + 10 * MS + INTERVAL, (long) dropTimes.get(0));
+        // then the drops come closer and closer: interval / sqrt(count)
+        Assert.assertTrue(dropTimes.size() > 10);
+        long expected = dropTimes.get(0);
+        for (int count = 1; count < dropTimes.size(); ++count) {
+            expected += (long) (INTERVAL / Math.sqrt(count));
+            // the queue is only looked at every millisecond
+            long late = dropTimes.get(count) - expected;
+            Assert.assertTrue("drop " + count + " late by " + late, late >= 0 && late < MS + count);
+        }
+    }
+
+    @Test
+    public void testStopDroppingOnceDrained() {
+        long start = now;
+        for (int i = 0; i < 500; ++i) {
+            queue.offer(packet(1), start);
+        }
+        now += 10 * MS;
+        while (now < start + 300 * MS) {
+            queue.offer(packet(1), now);
+            queue.peek(now);
+            queue.poll();
+            now += MS;
+        }
+        long drops = queue.getDrops();
+        Assert.assertTrue(drops > 0);
+        // drained at once, the last packets are recent
+        while (!queue.isEmpty()) {
+            queue.peek(now);
+            queue.poll();
+        }
+        long dropsWhileDraining = queue.getDrops() - drops;
+        // then a sparse flow, below the target
+        for (int i = 0; i < 1000; ++i) {
+            queue.offer(packet(1), now);
+            now += MS;
+            Assert.assertNotNull(queue.peek(now));
+            queue.poll();
+        }
+        Assert.assertEquals(drops + dropsWhileDraining, queue.getDrops());
+    }
+
+    @Test
+    public void testFlowLimit() {
+        int length = packet(0).getRawLength();
+        int count = 2 * LIMIT / length;
+        for (int i = 0; i < count; ++i) {
+            queue.offer(packet(i + 1), now);
+        }
+        // the oldest packets are dropped
+        int kept = LIMIT / length;
+        Assert.assertEquals(count - kept, queue.getDrops());
+        Assert.assertEquals(count - kept + 1, port(queue.peek(now)));
+    }
+
+    /**
+     * A UDP flow queued for the client, as {@link UDPConnection} does.
+     */
+    private static final class Flow implements PacketSource {
+        private final CoDelQueue queue = new CoDelQueue();
+        private final long[] now;
+        private boolean scheduled;
+        private int received;
+
+        private Flow(long[] now) {
+            this.now = now;
+        }
+
+        @Override
+        public IPv4Packet get() {
+            IPv4Packet packet = queue.peek(now[0]);
+            scheduled = packet != null;
+            return packet;
+        }
+
+        @Override
+        public void next() {
+            queue.poll();
+        }
+    }
+
+    @Test
+    public void testPerFlowIsolation() {
+        long[] time = {now};
+        FlowScheduler scheduler = new FlowScheduler();
+        Flow greedy = new Flow(time);
+        Flow sparse = new Flow(time);
+        int length = packet(0).getRawLength();
+        for (int i = 0; i < 3000; ++i) {
+            // twice the client capacity, 10 packets per millisecond
+            for (int j = 0; j < 20; ++j) {
+                greedy.queue.offer(packet(1), time[0]);
+            }
+            sparse.queue.offer(packet(2), time[0]);
+            for (Flow flow : new Flow[]{greedy, sparse}) {
+                if (!flow.scheduled) {
+                    flow.scheduled = true;
+                    scheduler.add(flow);
+                }
+            }
+            time[0] += MS;
+            scheduler.send((source, packet) -> {
+                if (port(packet) == 1) {
+                    ++greedy.received;
+                } else {
+                    ++sparse.received;
+                }
+                return true;
+            }, 10 * length);
+        }
+        // only the flow building a standing queue loses packets
+        Assert.assertTrue(greedy.queue.getDrops() > 0);
+        Assert.assertEquals(0, sparse.queue.getDrops());
+        // delivered within a round
+        Assert.assertTrue(sparse.received >= 2998);
+        Assert.assertTrue(greedy.received >= 3000 * 9);
+    }
+}
@@ -0,0 +1,134 @@
+package tech.flightdeck.android.revtet.relay.network;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class FlowSchedulerTest {
+    // the default revtet.flowQuantum
+    private static final int QUANTUM = 4096;
+    private static final int UDP_HEADERS = 28;
+
+    /**
+     * Source of a given number of packets of the same raw length, from a given port.
+     */
+    private static final class Source implements PacketSource {
+        private final IPv4Packet packet;
+        private int remaining;
+
+        private Source(int port, int rawLength, int count) {
+            packet = TestPackets.udpPacket(port, rawLength - UDP_HEADERS);
+            remaining = count;
+        }
+
+        @Override
+        public IPv4Packet get() {
+            return remaining == 0 ? null : packet;
+        }
+
+        @Override
+        public void next() {
+            --remaining;
+        }
+    }
+
+    private final FlowScheduler scheduler = new FlowScheduler();
+    private final Map<Integer, Integer> bytesPerPort = new HashMap<>();
+    private final List<Integer> order = new ArrayList<>();
+
+    private boolean record(PacketSource source, IPv4Packet packet) {
+        int port = ((UDPHeader) packet.getTransportHeader()).getSourcePort();
+        bytesPerPort.merge(port, packet.getRawLength(), Integer::sum);
+        order.add(port);
+        return true;
+    }
+
+    private int bytes(int port) {
+        return bytesPerPort.getOrDefault(port, 0);
+    }
+
+    @Test
+    public void testByteFairnessWithUnequalPacketSizes() {
+        scheduler.add(new Source(1, 1500, Integer.MAX_VALUE));
+        scheduler.add(new Source(2, 100, Integer.MAX_VALUE));
+        scheduler.add(new Source(3, 576, Integer.MAX_VALUE));
+        int budget = 300_000;
+        int sent = scheduler.send(this::record, budget);
+        Assert.assertTrue(sent <= budget);
+        Assert.assertEquals(sent, bytes(1) + bytes(2) + bytes(3));
+        // each flow gets a third of the bytes, within a quantum, not a third of the packets
+        for (int port = 1; port <= 3; ++port) {
+            Assert.assertEquals("flow " + port, sent / 3.0, bytes(port), QUANTUM);
+        }
+    }
+
+    @Test
+    public void testShareProportionalToQuantumPerRound() {
+        scheduler.add(new Source(1, 1000, Integer.MAX_VALUE));
+        scheduler.add(new Source(2, 100, Integer.MAX_VALUE));
+        scheduler.send(this::record, 40 * QUANTUM);
+        // on each visit, a flow sends the packets its credit covers: 4 of 1000 bytes, then 40 of 100 bytes
+        Assert.assertEquals(Integer.valueOf(1), order.get(0));
+        Assert.assertEquals(Integer.valueOf(1), order.get(3));
+        Assert.assertEquals(Integer.valueOf(2), order.get(4));
+        Assert.assertEquals(Integer.valueOf(2), order.get(43));
+        Assert.assertEquals(Integer.valueOf(1), order.get(44));
+        Assert.assertEquals(Integer.valueOf(1), order.get(47));
+        // the 96 bytes left to the second flow carry over, so it sends a 41st packet on its next visit
+        Assert.assertEquals(Integer.valueOf(2), order.get(48));
+        Assert.assertEquals(Integer.valueOf(2), order.get(88));
+        Assert.assertEquals(Integer.valueOf(1), order.get(89));
+    }
+
+    @Test
+    public void testDeficitCarriesOverForLargePackets() {
+        // larger than the quantum, it is sent every other visit
+        scheduler.add(new Source(1, 6000, Integer.MAX_VALUE));
+        scheduler.add(new Source(2, 500, Integer.MAX_VALUE));
+        int sent = scheduler.send(this::record, 600_000);
+        Assert.assertTrue(bytes(1) > 0);
+        Assert.assertEquals(sent / 2.0, bytes(1), 6000 + QUANTUM);
+        Assert.assertEquals(sent / 2.0, bytes(2), 6000 + QUANTUM);
+    }
+
+    @Test
+    public void testSinkFullKeepsPlace() {
+        scheduler.add(new Source(1, 1000, 3));
+        scheduler.add(new Source(2, 1000, 3));
+        int[] accepted = {1};
+        Assert.assertEquals(1000, scheduler.send((source, packet) -> accepted[0]-- > 0 && record(source, packet), Integer.MAX_VALUE));
+        // the first flow has credit left, it resumes first
+        Assert.assertEquals(5000, scheduler.send(this::record, Integer.MAX_VALUE));
+        Assert.assertEquals(3000, bytes(1));
+        Assert.assertEquals(3000, bytes(2));
+        Assert.assertEquals(Integer.valueOf(1), order.get(0));
+        Assert.assertEquals(Integer.valueOf(1), order.get(2));
+        Assert.assertTrue(scheduler.isEmpty());
+    }
+
+    @Test
+    public void testBudget() {
+        scheduler.add(new Source(1, 1000, 10));
+        Assert.assertEquals(3000, scheduler.send(this::record, 3500));
+        Assert.assertFalse(scheduler.isEmpty());
+        Assert.assertEquals(7000, scheduler.send(this::record, Integer.MAX_VALUE));
+        Assert.assertTrue(scheduler.isEmpty());
+    }
+
+    @Test
+    public void testEmptySourceLeaves() {
+        Source empty = new Source(1, 1000, 0);
+        scheduler.add(empty);
+        Assert.assertEquals(0, scheduler.send(this::record, Integer.MAX_VALUE));
+        Assert.assertTrue(scheduler.isEmpty());
+        // once left, it may be added again
+        empty.remaining = 2;
+        scheduler.add(empty);
+        Assert.assertEquals(2000, scheduler.send(this::record, Integer.MAX_VALUE));
+        Assert.assertTrue(scheduler.isEmpty());
+    }
+}
@@ -0,0 +1,190 @@
+package tech.flightdeck.android.revtet.relay.network;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+
+public class IPv4PacketBufferTest {
+    private static final class QueueSource implements BufferSource {
+        private final Deque<ByteBuffer> received = new ArrayDeque<>();
+        private final List<ByteBuffer> released = new ArrayList<>();
+        private int taken;
+
+        void receive(byte[] data, int offset, int length) {
+            // direct, like the USB receive buffers
+            ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+            buffer.put(data, offset, length).flip();
+            received.add(buffer);
+        }
+
+        @Override
+        public ByteBuffer take() {
+            ByteBuffer buffer = received.poll();
+            if (buffer != null) {
+                ++taken;
+            }
+            return buffer;
+        }
+
+        @Override
+        public void release(ByteBuffer buffer) {
+            released.add(buffer);
+        }
+    }
+
+    private final QueueSource source = new QueueSource();
+    private final IPv4PacketBuffer packetBuffer = new IPv4PacketBuffer(source);
+
+    private static byte[] concat(ByteBuffer... packets) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ByteBuffer packet : packets) {
+            byte[] array = TestPackets.toArray(packet);
+            out.write(array, 0, array.length);
+        }
+        return out.toByteArray();
+    }
+
+    private void receiveSplit(byte[] data, int... cuts) {
+        int start = 0;
+        for (int cut : cuts) {
+            source.receive(data, start, cut - start);
+            start = cut;
+        }
+        source.receive(data, start, data.length - start);
+    }
+
+    private void assertNextPacket(ByteBuffer expected) {
+        Assert.assertEquals(expected.remaining(), packetBuffer.nextPacketLength());
+        IPv4Packet packet = packetBuffer.asIPv4Packet();
+        Assert.assertTrue(packet.isValid());
+        Assert.assertArrayEquals(TestPackets.toArray(expected), TestPackets.toArray(packet.getRaw()));
+        packetBuffer.next();
+    }
+
+    @Test
+    public void testPacketsInSingleBuffer() {
+        ByteBuffer p1 = TestPackets.udp(1000, 53, 10, 1);
+        ByteBuffer p2 = TestPackets.udp(1001, 53, 0, 2);
+        ByteBuffer p3 = TestPackets.udp(1002, 53, 300, 3);
+        byte[] data = concat(p1, p2, p3);
+        source.receive(data, 0, data.length);
+
+        assertNextPacket(p1);
+        assertNextPacket(p2);
+        assertNextPacket(p3);
+        Assert.assertEquals(0, packetBuffer.nextPacketLength());
+        Assert.assertNull(packetBuffer.asIPv4Packet());
+        // consumed entirely, given back
+        Assert.assertEquals(1, source.released.size());
+    }
+
+    @Test
+    public void testPacketSpanningTwoBuffers() {
+        ByteBuffer p1 = TestPackets.udp(1000, 53, 100, 1);
+        ByteBuffer p2 = TestPackets.udp(1001, 53, 200, 2);
+        ByteBuffer p3 = TestPackets.udp(1002, 53, 50, 3);
+        byte[] data = concat(p1, p2, p3);
+        // p2 split in its payload
+        receiveSplit(data, p1.remaining() + 150);
+
+        assertNextPacket(p1);
+        assertNextPacket(p2);
+        assertNextPacket(p3);
+        Assert.assertEquals(0, packetBuffer.nextPacketLength());
+        Assert.assertEquals(2, source.released.size());
+    }
+
+    @Test
+    public void testLengthFieldSplit() {
+        ByteBuffer p1 = TestPackets.udp(1000, 53, 20, 1);
+        ByteBuffer p2 = TestPackets.udp(1001, 53, 40, 2);
+        byte[] data = concat(p1, p2);
+        // every cut inside the first 4 bytes of p2, i.e. before its length field is complete
+        for (int cut = 1; cut < 4; ++cut) {
+            QueueSource source = new QueueSource();
+            IPv4PacketBuffer packetBuffer = new IPv4PacketBuffer(source);
+            int start = p1.remaining() + cut;
+            source.receive(data, 0, start);
+            source.receive(data, start, data.length - start);
+
+            Assert.assertEquals(p1.remaining(), packetBuffer.nextPacketLength());
+            packetBuffer.next();
+            Assert.assertEquals(p2.remaining(), packetBuffer.nextPacketLength());
+            Assert.assertArrayEquals(TestPackets.toArray(p2), TestPackets.toArray(packetBuffer.asIPv4Packet().getRaw()));
+            packetBuffer.next();
+            Assert.assertEquals(0, packetBuffer.nextPacketLength());
+        }
+    }
+
+    @Test
+    public void testPacketSpanningManyBuffers() {
+        ByteBuffer p1 = TestPackets.udp(1000, 53, 1000, 1);
+        ByteBuffer p2 = TestPackets.udp(1001, 53, 10, 2);
+        byte[] data = concat(p1, p2);
+        // 1 byte, then 3 (end of the length field), then small chunks
+        receiveSplit(data, 1, 4, 10, 100, 500, 1020, 1030);
+
+        assertNextPacket(p1);
+        assertNextPacket(p2);
+        Assert.assertEquals(0, packetBuffer.nextPacketLength());
+        // all given back once consumed
+        Assert.assertEquals(source.taken, source.released.size());
+    }
+
+    @Test
+    public void testIncompletePacket() {
+        ByteBuffer p1 = TestPackets.udp(1000, 53, 500, 1);
+        byte[] data = TestPackets.toArray(p1);
+        // truncated header
+        source.receive(data, 0, 2);
+        Assert.assertEquals(0, packetBuffer.nextPacketLength());
+        // truncated payload
+        source.receive(data, 2, 100);
+        Assert.assertEquals(0, packetBuffer.nextPacketLength());
+        Assert.assertNull(packetBuffer.asIPv4Packet());
+        // the rest arrives later
+        source.receive(data, 102, data.length - 102);
+        assertNextPacket(p1);
+        Assert.assertEquals(0, packetBuffer.nextPacketLength());
+    }
+
+    @Test
+    public void testZeroCopyWhenNotSplit() {
+        ByteBuffer p1 = TestPackets.udp(1000, 53, 100, 1);
+        byte[] data = TestPackets.toArray(p1);
+        source.receive(data, 0, data.length);
+        IPv4Packet packet = packetBuffer.asIPv4Packet();
+        // parsed directly out of the received buffer
+        Assert.assertTrue(packet.getRaw().isDirect());
+        Assert.assertArrayEquals(data, TestPackets.toArray(packet.getRaw()));
+    }
+
+    @Test
+    public void testRandomSplits() {
+        Random random = new Random(42);
+        List<ByteBuffer> packets = new ArrayList<>();
+        for (int i = 0; i < 200; ++i) {
+            packets.add(TestPackets.udp(1000 + i, 53, random.nextInt(1500), i));
+        }
+        byte[] data = concat(packets.toArray(new ByteBuffer[0]));
+        int start = 0;
+        while (start < data.length) {
+            int length = Math.min(1 + random.nextInt(700), data.length - start);
+            source.receive(data, start, length);
+            start += length;
+        }
+        for (ByteBuffer packet : packets) {
+            assertNextPacket(packet);
+        }
+        Assert.assertEquals(0, packetBuffer.nextPacketLength());
+        Assert.assertTrue(source.received.isEmpty());
+        Assert.assertEquals(source.taken, source.released.size());
+    }
+}
@@ -0,0 +1,48 @@
+package tech.flightdeck.android.revtet.relay.network;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+public class QueuedFlowTest {
+    private final WritableByteChannel sink = Channels.newChannel(new ByteArrayOutputStream());
+
+    @Test
+    public void testPendingUntilWritten() throws IOException {
+        StreamBuffer buffer = new StreamBuffer(1000);
+        QueuedFlow flow = new QueuedFlow();
+        Assert.assertNull(flow.getPendingBuffer());
+
+        buffer.readFrom(TestPackets.udp(1000, 2000, 100, 0));
+        flow.queued(buffer);
+        // packets of other flows queued behind do not matter
+        buffer.readFrom(TestPackets.udp(1001, 2000, 100, 0));
+        Assert.assertSame(buffer, flow.getPendingBuffer());
+
+        // partially written
+        buffer.writeTo(sink, 50);
+        Assert.assertSame(buffer, flow.getPendingBuffer());
+        buffer.writeTo(sink, 128 - 50);
+        Assert.assertNull(flow.getPendingBuffer());
+    }
+
+    @Test
+    public void testFollowsLastPacket() throws IOException {
+        StreamBuffer bulk = new StreamBuffer(1000);
+        StreamBuffer priority = new StreamBuffer(1000);
+        QueuedFlow flow = new QueuedFlow();
+        bulk.readFrom(TestPackets.udp(1000, 2000, 100, 0));
+        flow.queued(bulk);
+        bulk.writeTo(sink);
+        priority.readFrom(TestPackets.udp(1000, 2000, 100, 1));
+        flow.queued(priority);
+        Assert.assertSame(priority, flow.getPendingBuffer());
+        // a skipped packet, e.g. partially written to a previous transport, is not pending anymore
+        priority.skip(128);
+        Assert.assertNull(flow.getPendingBuffer());
+    }
+}
@@ -0,0 +1,179 @@
+package tech.flightdeck.android.revtet.relay.network;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import tech.flightdeck.android.revtet.relay.loop.ResourceCounters;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SpillBufferTest {
+    private static final int CAPACITY = 1000;
+
+    private final Packetizer packetizer;
+    private SpillBuffer spill;
+    // value of the next byte expected from the spill buffer
+    private int expected;
+
+    public SpillBufferTest() {
+        IPv4Packet packet = TestPackets.tcpPacket(0x10, 0);
+        packetizer = new Packetizer(packet.getIpv4Header(), packet.getTransportHeader());
+    }
+
+    @After
+    public void tearDown() {
+        if (spill != null) {
+            spill.close();
+        }
+    }
+
+    /**
+     * @param length The length of the stream.
+     * @param step   The maximum number of bytes returned by a read, like a socket receiving segments.
+     */
+    private static ReadableByteChannel stream(int length, int step) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            data[i] = (byte) i;
+        }
+        ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(data));
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                ByteBuffer limited = dst.duplicate();
+                limited.limit(Math.min(dst.limit(), dst.position() + step));
+                int r = channel.read(limited);
+                if (r > 0) {
+                    dst.position(limited.position());
+                }
+                return r;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    private int packetize(int maxChunkSize) {
+        int size = spill.size();
+        IPv4Packet packet = spill.packetize(packetizer, maxChunkSize);
+        int length = packet.getPayloadLength();
+        Assert.assertEquals(size - length, spill.size());
+        ByteBuffer payload = packet.getPayload();
+        while (payload.hasRemaining()) {
+            Assert.assertEquals((byte) expected++, payload.get());
+        }
+        return length;
+    }
+
+    private void assertPacketize(int maxChunkSize, int expectedLength) {
+        Assert.assertEquals(expectedLength, packetize(maxChunkSize));
+    }
+
+    @Test
+    public void testPacketize() throws IOException {
+        spill = SpillBuffer.create(CAPACITY);
+        Assert.assertTrue(spill.isEmpty());
+        Assert.assertEquals(300, spill.readFrom(stream(300, 300)));
+        Assert.assertEquals(300, spill.size());
+        assertPacketize(100, 100);
+        // no more than spilled
+        assertPacketize(500, 200);
+        Assert.assertTrue(spill.isEmpty());
+    }
+
+    @Test
+    public void testWrapAround() throws IOException {
+        spill = SpillBuffer.create(CAPACITY);
+        ReadableByteChannel channel = stream(10_000, 800);
+        Assert.assertEquals(800, spill.readFrom(channel));
+        assertPacketize(600, 600);
+        // up to the end of the segment only
+        Assert.assertEquals(200, spill.readFrom(channel));
+        Assert.assertEquals(600, spill.readFrom(channel));
+        Assert.assertTrue(spill.isFull());
+        Assert.assertEquals(0, spill.readFrom(channel));
+        // the payload of a packet is contiguous, it ends at the end of the segment
+        assertPacketize(1000, 400);
+        assertPacketize(1000, 600);
+        Assert.assertTrue(spill.isEmpty());
+    }
+
+    @Test
+    public void testManyTurns() throws IOException {
+        spill = SpillBuffer.create(CAPACITY);
+        int total = 100_000;
+        ReadableByteChannel channel = stream(total, 457);
+        int read = 0;
+        int r;
+        while ((r = spill.readFrom(channel)) != -1) {
+            read += r;
+            while (spill.size() > 300) {
+                // shorter at the end of the segment
+                Assert.assertTrue(packetize(333) > 0);
+            }
+        }
+        while (!spill.isEmpty()) {
+            packetize(333);
+        }
+        Assert.assertEquals(total, read);
+        Assert.assertEquals(total, expected);
+    }
+
+    @Test
+    public void testEndOfStream() throws IOException {
+        spill = SpillBuffer.create(CAPACITY);
+        ReadableByteChannel channel = stream(10, 10);
+        Assert.assertEquals(10, spill.readFrom(channel));
+        Assert.assertEquals(-1, spill.readFrom(channel));
+        Assert.assertEquals(10, spill.size());
+    }
+
+    @Test
+    public void testSegmentBudget() throws IOException {
+        List<SpillBuffer> buffers = new ArrayList<>();
+        try {
+            SpillBuffer buffer;
+            while ((buffer = SpillBuffer.create(CAPACITY)) != null) {
+                buffers.add(buffer);
+                Assert.assertTrue("no budget", buffers.size() <= 1000);
+            }
+            Assert.assertFalse(buffers.isEmpty());
+            Assert.assertFalse(SpillBuffer.isAvailable());
+            // a closed segment is available again
+            buffers.remove(0).close();
+            Assert.assertTrue(SpillBuffer.isAvailable());
+            spill = SpillBuffer.create(CAPACITY);
+            Assert.assertNotNull(spill);
+            Assert.assertNull(SpillBuffer.create(CAPACITY));
+        } finally {
+            for (SpillBuffer buffer : buffers) {
+                buffer.close();
+            }
+        }
+    }
+
+    @Test
+    public void testClose() throws IOException {
+        long live = ResourceCounters.SPILL_SEGMENTS.getLive();
+        SpillBuffer buffer = SpillBuffer.create(CAPACITY);
+        Assert.assertEquals(live + 1, ResourceCounters.SPILL_SEGMENTS.getLive());
+        buffer.close();
+        // closing twice is harmless
+        buffer.close();
+        Assert.assertEquals(live, ResourceCounters.SPILL_SEGMENTS.getLive());
+    }
+}
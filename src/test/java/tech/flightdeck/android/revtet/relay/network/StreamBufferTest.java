@@ -0,0 +1,127 @@
+package tech.flightdeck.android.revtet.relay.network;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+public class StreamBufferTest {
+    private static ByteBuffer bytes(int from, int count) {
+        ByteBuffer buffer = ByteBuffer.allocate(count);
+        for (int i = 0; i < count; ++i) {
+            buffer.put((byte) (from + i));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static byte[] drain(StreamBuffer streamBuffer, int max) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel channel = Channels.newChannel(out);
+        while (!streamBuffer.isEmpty() && out.size() < max) {
+            streamBuffer.writeTo(channel, max - out.size());
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testSizeAndRemaining() {
+        StreamBuffer buffer = new StreamBuffer(10);
+        Assert.assertTrue(buffer.isEmpty());
+        Assert.assertEquals(10, buffer.capacity());
+        buffer.readFrom(bytes(0, 7));
+        Assert.assertEquals(7, buffer.size());
+        Assert.assertEquals(3, buffer.remaining());
+        // only what fits is read
+        ByteBuffer source = bytes(7, 5);
+        buffer.readFrom(source);
+        Assert.assertEquals(2, source.remaining());
+        Assert.assertTrue(buffer.isFull());
+        Assert.assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    public void testWriteToMax() throws IOException {
+        StreamBuffer buffer = new StreamBuffer(10);
+        buffer.readFrom(bytes(0, 8));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals(3, buffer.writeTo(Channels.newChannel(out), 3));
+        Assert.assertArrayEquals(new byte[]{0, 1, 2}, out.toByteArray());
+        Assert.assertEquals(5, buffer.size());
+    }
+
+    @Test
+    public void testWrapAround() throws IOException {
+        StreamBuffer buffer = new StreamBuffer(10);
+        buffer.readFrom(bytes(0, 8));
+        Assert.assertArrayEquals(TestPackets.toArray(bytes(0, 6)), drain(buffer, 6));
+        // written across the end of the array
+        buffer.readFrom(bytes(8, 7));
+        Assert.assertEquals(9, buffer.size());
+        // written in two calls at most, never beyond max
+        Assert.assertArrayEquals(TestPackets.toArray(bytes(6, 4)), drain(buffer, 4));
+        Assert.assertArrayEquals(TestPackets.toArray(bytes(10, 5)), drain(buffer, 100));
+        Assert.assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void testPeekUnsignedShort() {
+        StreamBuffer buffer = new StreamBuffer(6);
+        buffer.readFrom(bytes(0, 5));
+        buffer.skip(5);
+        ByteBuffer source = ByteBuffer.allocate(4);
+        source.put((byte) 0xAB).put((byte) 0xCD).put((byte) 0xEF).put((byte) 0x01).flip();
+        buffer.readFrom(source);
+        Assert.assertEquals(0xABCD, buffer.peekUnsignedShort(0));
+        Assert.assertEquals(0xCDEF, buffer.peekUnsignedShort(1));
+        Assert.assertEquals(0xEF01, buffer.peekUnsignedShort(2));
+    }
+
+    @Test
+    public void testPeekUnsignedShortAcrossEnd() {
+        StreamBuffer buffer = new StreamBuffer(6);
+        // make the data start at the last byte of the array, skip() without emptying
+        buffer.readFrom(bytes(0, 6));
+        buffer.skip(5);
+        ByteBuffer source = ByteBuffer.allocate(3);
+        source.put((byte) 0x12).put((byte) 0x34).put((byte) 0x56).flip();
+        buffer.readFrom(source);
+        // the remaining byte 5, then 0x12 0x34 0x56 wrapped at the start of the array
+        Assert.assertEquals(0x0512, buffer.peekUnsignedShort(0));
+        Assert.assertEquals(0x1234, buffer.peekUnsignedShort(1));
+        Assert.assertEquals(0x3456, buffer.peekUnsignedShort(2));
+    }
+
+    @Test
+    public void testSkip() throws IOException {
+        StreamBuffer buffer = new StreamBuffer(10);
+        buffer.readFrom(bytes(0, 9));
+        buffer.skip(4);
+        Assert.assertEquals(5, buffer.size());
+        buffer.readFrom(bytes(9, 5));
+        buffer.skip(7);
+        Assert.assertArrayEquals(new byte[]{11, 12, 13}, drain(buffer, 100));
+        // skipping everything empties the buffer
+        buffer.readFrom(bytes(0, 3));
+        buffer.skip(3);
+        Assert.assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void testTotalsAcrossWrapAround() throws IOException {
+        StreamBuffer buffer = new StreamBuffer(10);
+        buffer.readFrom(bytes(0, 8));
+        drain(buffer, 6);
+        // wraps around
+        buffer.readFrom(bytes(8, 7));
+        Assert.assertEquals(15, buffer.getTotalRead());
+        Assert.assertEquals(6, buffer.getTotalWritten());
+        buffer.skip(3);
+        drain(buffer, 100);
+        Assert.assertEquals(15, buffer.getTotalWritten());
+    }
+}
@@ -0,0 +1,36 @@
+package tech.flightdeck.android.revtet.relay.network;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TCPConnectionTest {
+    // MTU - IPv4 header - TCP header
+    private static final int MAX_PAYLOAD_SIZE = 0x4000 - 40;
+
+    @Test
+    public void testSpillChunkSizeZeroWindow() {
+        // the client advertises a zero window
+        Assert.assertEquals(0, TCPConnection.getSpillChunkSize(0, 0, 1000));
+        // the client has not acknowledged its whole window yet
+        Assert.assertEquals(0, TCPConnection.getSpillChunkSize(0, 65535, 1000));
+        Assert.assertEquals(0, TCPConnection.getSpillChunkSize(0, 65535, 1));
+    }
+
+    @Test
+    public void testSpillChunkSizeSillyWindow() {
+        // a small window, waiting for more than half of it to be acknowledged
+        Assert.assertEquals(0, TCPConnection.getSpillChunkSize(100, 65535, 1000));
+        Assert.assertEquals(MAX_PAYLOAD_SIZE, TCPConnection.getSpillChunkSize(40_000, 65535, 100_000));
+        // the remaining data fits
+        Assert.assertEquals(100, TCPConnection.getSpillChunkSize(100, 65535, 50));
+        // a whole packet fits
+        Assert.assertEquals(MAX_PAYLOAD_SIZE, TCPConnection.getSpillChunkSize(MAX_PAYLOAD_SIZE, 65535, 100_000));
+        // the client window is tiny
+        Assert.assertEquals(100, TCPConnection.getSpillChunkSize(100, 150, 1000));
+    }
+
+    @Test
+    public void testSpillChunkSizeOpenWindow() {
+        Assert.assertEquals(MAX_PAYLOAD_SIZE, TCPConnection.getSpillChunkSize(65535, 65535, 1_000_000));
+    }
+}
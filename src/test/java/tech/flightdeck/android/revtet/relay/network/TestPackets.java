@@ -0,0 +1,59 @@
+package tech.flightdeck.android.revtet.relay.network;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Builders of raw IPv4 packets for the tests, from 10.0.0.2 to 127.0.0.1.
+ */
+public final class TestPackets {
+    private TestPackets() {
+        // not instantiable
+    }
+
+    private static ByteBuffer ipv4(int protocol, int transportLength, int payloadLength) {
+        int length = 20 + transportLength + payloadLength;
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.put((byte) 0x45).put((byte) 0).putShort((short) length).putShort((short) 0).putShort((short) 0)
+                .put((byte) 64).put((byte) protocol).putShort((short) 0);
+        buffer.put(new byte[]{10, 0, 0, 2}).put(new byte[]{127, 0, 0, 1});
+        return buffer;
+    }
+
+    private static void putPayload(ByteBuffer buffer, int payloadLength, int seed) {
+        for (int i = 0; i < payloadLength; ++i) {
+            buffer.put((byte) (seed + i));
+        }
+        buffer.flip();
+    }
+
+    public static ByteBuffer udp(int sourcePort, int destinationPort, int payloadLength, int seed) {
+        ByteBuffer buffer = ipv4(17, 8, payloadLength);
+        buffer.putShort((short) sourcePort).putShort((short) destinationPort).putShort((short) (8 + payloadLength))
+                .putShort((short) 0);
+        putPayload(buffer, payloadLength, seed);
+        return buffer;
+    }
+
+    static ByteBuffer tcp(int sourcePort, int destinationPort, int flags, int payloadLength) {
+        ByteBuffer buffer = ipv4(6, 20, payloadLength);
+        buffer.putShort((short) sourcePort).putShort((short) destinationPort).putInt(1000).putInt(2000)
+                .put((byte) 0x50).put((byte) flags).putShort((short) 65535).putShort((short) 0).putShort((short) 0);
+        putPayload(buffer, payloadLength, 0);
+        return buffer;
+    }
+
+    static IPv4Packet udpPacket(int sourcePort, int payloadLength) {
+        return new IPv4Packet(udp(sourcePort, 53000, payloadLength, 0));
+    }
+
+    static IPv4Packet tcpPacket(int flags, int payloadLength) {
+        return new IPv4Packet(tcp(80, 40000, flags, payloadLength));
+    }
+
+    static byte[] toArray(ByteBuffer buffer) {
+        ByteBuffer duplicate = buffer.duplicate();
+        byte[] array = new byte[duplicate.remaining()];
+        duplicate.get(array);
+        return array;
+    }
+}
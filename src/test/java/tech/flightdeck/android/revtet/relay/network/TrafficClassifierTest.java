@@ -0,0 +1,79 @@
+package tech.flightdeck.android.revtet.relay.network;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TrafficClassifierTest {
+    // the defaults of revtet.interactive.burst and revtet.interactive.rate
+    private static final int BURST = 256 * 1024;
+    private static final int RATE = 64 * 1024;
+
+    private static final int SYN = 0x02;
+    private static final int RST = 0x04;
+    private static final int FIN_ACK = 0x11;
+    private static final int ACK = 0x10;
+
+    private final FlowMeter meter = new FlowMeter();
+    private long now = 1_000_000;
+
+    @Test
+    public void testControlPackets() {
+        Assert.assertEquals(TrafficClass.PRIORITY, TrafficClassifier.classify(TestPackets.tcpPacket(SYN, 0), null, now));
+        Assert.assertEquals(TrafficClass.PRIORITY, TrafficClassifier.classify(TestPackets.tcpPacket(RST, 0), null, now));
+        Assert.assertEquals(TrafficClass.PRIORITY, TrafficClassifier.classify(TestPackets.tcpPacket(ACK, 0), null, now));
+        Assert.assertEquals(TrafficClass.PRIORITY, TrafficClassifier.classify(TestPackets.udpPacket(53, 100), null, now));
+        // must not overtake the data of its flow
+        Assert.assertEquals(TrafficClass.BULK, TrafficClassifier.classify(TestPackets.tcpPacket(FIN_ACK, 0), null, now));
+        Assert.assertEquals(TrafficClass.BULK, TrafficClassifier.classify(TestPackets.tcpPacket(ACK, 1000), null, now));
+    }
+
+    @Test
+    public void testDemotedPastBurst() {
+        IPv4Packet packet = TestPackets.udpPacket(40000, 1000);
+        int sent = 0;
+        while (TrafficClassifier.classify(packet, meter, now) == TrafficClass.PRIORITY) {
+            sent += 1000;
+            Assert.assertTrue("never demoted", sent <= BURST);
+        }
+        Assert.assertEquals(BURST - 1000, sent, 1000);
+        Assert.assertEquals(TrafficClass.BULK, TrafficClassifier.classify(packet, meter, now));
+        // control packets of the flow are not delayed behind its data
+        Assert.assertEquals(TrafficClass.PRIORITY,
+                TrafficClassifier.classify(TestPackets.tcpPacket(ACK, 0), meter, now));
+    }
+
+    @Test
+    public void testStaysBulkUntilRefilled() {
+        Assert.assertFalse(meter.charge(BURST, now));
+        // half refilled, the packets must not alternate between the classes
+        now += 1000L * BURST / 2 / RATE;
+        Assert.assertFalse(meter.charge(1, now));
+        // a bit more than the whole bucket, for the 1 byte above
+        now += 1000L * BURST / RATE;
+        Assert.assertTrue(meter.charge(1000, now));
+    }
+
+    @Test
+    public void testInteractiveWithinRate() {
+        // a whole burst at once, then the sustained rate
+        Assert.assertTrue(meter.charge(BURST - 1, now));
+        for (int i = 0; i < 1000; ++i) {
+            now += 100;
+            Assert.assertTrue(meter.charge(RATE / 10, now));
+        }
+        // faster than the rate, the bucket soon empties
+        boolean interactive = true;
+        for (int i = 0; i < 10 && interactive; ++i) {
+            now += 100;
+            interactive = meter.charge(RATE, now);
+        }
+        Assert.assertFalse(interactive);
+    }
+
+    @Test
+    public void testClockGoingBackwards() {
+        Assert.assertTrue(meter.charge(1000, now));
+        Assert.assertTrue(meter.charge(1000, now - 10_000));
+        Assert.assertFalse(meter.charge(BURST, now));
+    }
+}
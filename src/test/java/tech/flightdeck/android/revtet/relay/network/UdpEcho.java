@@ -0,0 +1,43 @@
+package tech.flightdeck.android.revtet.relay.network;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+/**
+ * UDP server on the loopback interface sending back every datagram it receives, as the remote end of the connections in
+ * the tests.
+ */
+public final class UdpEcho implements AutoCloseable {
+    private final DatagramSocket socket;
+
+    public UdpEcho() throws IOException {
+        socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(this::run, "UDP echo");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    private void run() {
+        byte[] data = new byte[65536];
+        try {
+            while (true) {
+                DatagramPacket packet = new DatagramPacket(data, data.length);
+                socket.receive(packet);
+                socket.send(packet);
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
@@ -0,0 +1,69 @@
+package tech.flightdeck.android.revtet.relay.transport;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import tech.flightdeck.android.revtet.relay.loop.EventLoop;
+import tech.flightdeck.android.revtet.relay.loop.EventLoopGroup;
+import tech.flightdeck.android.revtet.relay.network.TestPackets;
+import tech.flightdeck.android.revtet.relay.network.UdpEcho;
+
+import java.nio.ByteBuffer;
+
+public class MemoryTransportTest {
+    private static EventLoop eventLoop;
+    private static UdpEcho echo;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        EventLoopGroup group = new EventLoopGroup(1);
+        group.start();
+        eventLoop = group.next();
+        echo = new UdpEcho();
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        echo.close();
+    }
+
+    private static byte[] payload(ByteBuffer packet, int length) {
+        byte[] payload = new byte[length];
+        ByteBuffer buffer = packet.duplicate();
+        buffer.position(buffer.limit() - length);
+        buffer.get(payload);
+        return payload;
+    }
+
+    @Test(timeout = 10_000)
+    public void testRoundTrip() throws Exception {
+        MemoryTransport transport = new MemoryTransport(eventLoop);
+        transport.createClient();
+        eventLoop.register(transport);
+        TestPeer peer = new TestPeer(transport);
+        for (int i = 0; i < 100; ++i) {
+            ByteBuffer packet = TestPackets.udp(40000, echo.getPort(), 1000, i);
+            peer.send(packet);
+            ByteBuffer reply = peer.receive(5000);
+            Assert.assertNotNull("No reply to packet " + i, reply);
+            // from the destination of the request to its source
+            Assert.assertEquals(packet.getInt(12), reply.getInt(16));
+            Assert.assertEquals(packet.getInt(16), reply.getInt(12));
+            Assert.assertEquals(packet.getShort(20), reply.getShort(22));
+            Assert.assertEquals(packet.getShort(22), reply.getShort(20));
+            Assert.assertArrayEquals(payload(packet, 1000), payload(reply, 1000));
+        }
+        eventLoop.unregister(transport);
+    }
+
+    @Test(timeout = 10_000)
+    public void testWriteAfterClose() throws Exception {
+        MemoryTransport transport = new MemoryTransport(eventLoop);
+        transport.createClient();
+        eventLoop.register(transport);
+        transport.close();
+        Assert.assertFalse(transport.isOpen());
+        Assert.assertEquals(-1, transport.write(ByteBuffer.allocate(10)));
+    }
+}
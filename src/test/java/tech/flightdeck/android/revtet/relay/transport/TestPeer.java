@@ -0,0 +1,99 @@
+package tech.flightdeck.android.revtet.relay.transport;
+
+import tech.flightdeck.android.revtet.relay.loop.EventLoop;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Phone side of a {@link MemoryTransport} in the tests, sending and receiving whole IPv4 packets.
+ * <p>
+ * To be used by the test thread only.
+ */
+public final class TestPeer {
+    private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+
+    private final MemoryTransport.Peer peer;
+    // data received and not returned as a packet yet
+    private final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+    public TestPeer(MemoryTransport transport) {
+        peer = transport.getPeer();
+    }
+
+    /**
+     * Send a copy of the data to the relay.
+     */
+    public void send(ByteBuffer data) throws InterruptedException {
+        ByteBuffer buffer = ByteBuffer.allocate(data.remaining());
+        buffer.put(data.duplicate()).flip();
+        long deadline = System.nanoTime() + TIMEOUT;
+        while (!peer.send(buffer)) {
+            if (peer.reclaim() == null) {
+                if (System.nanoTime() - deadline > 0) {
+                    throw new AssertionError("The relay does not consume the data sent");
+                }
+                Thread.sleep(1);
+            }
+        }
+        while (peer.reclaim() != null) {
+            // consumed
+        }
+    }
+
+    /**
+     * @param timeout The maximum time to wait, in milliseconds.
+     * @return The next packet written by the relay, or {@code null} if none within the timeout.
+     */
+    public ByteBuffer receive(long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (true) {
+            ByteBuffer packet = nextPacket();
+            if (packet != null) {
+                return packet;
+            }
+            ByteBuffer buffer = peer.receive();
+            if (buffer != null) {
+                stream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                peer.release(buffer);
+            } else if (System.nanoTime() - deadline > 0) {
+                return null;
+            } else {
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    private ByteBuffer nextPacket() {
+        byte[] data = stream.toByteArray();
+        if (data.length < 4) {
+            return null;
+        }
+        // IPv4 total length
+        int length = ((data[2] & 0xff) << 8) | (data[3] & 0xff);
+        if (data.length < length) {
+            return null;
+        }
+        stream.reset();
+        stream.write(data, length, data.length - length);
+        return ByteBuffer.wrap(data, 0, length).slice();
+    }
+
+    /**
+     * Run a task on the event loop thread, and wait for its result.
+     */
+    public static <T> T call(EventLoop eventLoop, Supplier<T> task) throws Exception {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        eventLoop.execute(() -> {
+            try {
+                future.complete(task.get());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future.get(5, TimeUnit.SECONDS);
+    }
+}